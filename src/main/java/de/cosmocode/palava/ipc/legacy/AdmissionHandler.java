@@ -0,0 +1,424 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.bridge.Content;
+import de.cosmocode.palava.bridge.call.CallType;
+import de.cosmocode.palava.bridge.content.ErrorContent;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Limits the number of calls in flight, globally and per remote address, and sheds
+ * calls which waited too long in a queue before they could be executed.
+ *
+ * <p>
+ *   Admission happens on the I/O thread right behind the {@link LegacyFrameDecoder}.
+ *   Calls over the limit are replaced by a {@link Rejection} which is answered
+ *   immediately with a pre-built error. Admitted calls hold their slot until the
+ *   {@link LegacyHandler} {@link #release(Channel) releases} it after responding.
+ * </p>
+ *
+ * <p>
+ *   Queue time shedding follows CoDel: calls are never dropped as long as the queue
+ *   time falls below the target at least once per interval. Once it stayed above the
+ *   target for a whole interval, calls are dropped at a rate which increases with the
+ *   square root of the number of drops, until a call gets through faster than the
+ *   target again. See {@link CoDel} for the details.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@Sharable
+@ThreadSafe
+@SuppressWarnings("deprecation")
+final class AdmissionHandler extends SimpleChannelUpstreamHandler implements Initializable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AdmissionHandler.class);
+
+    /**
+     * Marks a per address counter which has been removed from the map.
+     */
+    private static final int DEAD = -1;
+
+    private final LegacyStatistics statistics;
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private final ConcurrentMap<InetAddress, AtomicInteger> addresses = Maps.newConcurrentMap();
+
+    private int maxCalls = Integer.MAX_VALUE;
+
+    private int maxCallsPerAddress = Integer.MAX_VALUE;
+
+    private long queueTarget;
+
+    private long queueInterval = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private CoDel codel;
+
+    private Content overloadedContent;
+
+    @Inject
+    public AdmissionHandler(LegacyStatistics statistics) {
+        this.statistics = Preconditions.checkNotNull(statistics, "Statistics");
+    }
+
+    @Inject(optional = true)
+    void setMaxCalls(@Named(LegacyNettyConfig.MAX_CALLS) int maxCalls) {
+        Preconditions.checkArgument(maxCalls > 0, "MaxCalls must be positive");
+        this.maxCalls = maxCalls;
+    }
+
+    @Inject(optional = true)
+    void setMaxCallsPerAddress(@Named(LegacyNettyConfig.MAX_CALLS_PER_ADDRESS) int maxCallsPerAddress) {
+        Preconditions.checkArgument(maxCallsPerAddress > 0, "MaxCallsPerAddress must be positive");
+        this.maxCallsPerAddress = maxCallsPerAddress;
+    }
+
+    /**
+     * Sets the acceptable queue time in milliseconds, zero disables shedding.
+     */
+    @Inject(optional = true)
+    void setQueueTarget(@Named(LegacyNettyConfig.QUEUE_TARGET) long queueTarget) {
+        Preconditions.checkArgument(queueTarget >= 0, "QueueTarget must not be negative");
+        this.queueTarget = TimeUnit.MILLISECONDS.toNanos(queueTarget);
+    }
+
+    /**
+     * Sets the queue measurement interval in milliseconds.
+     */
+    @Inject(optional = true)
+    void setQueueInterval(@Named(LegacyNettyConfig.QUEUE_INTERVAL) long queueInterval) {
+        Preconditions.checkArgument(queueInterval > 0, "QueueInterval must be positive");
+        this.queueInterval = TimeUnit.MILLISECONDS.toNanos(queueInterval);
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        LOG.info("Admitting at most {} calls, {} per address, queue target is {}ns", new Object[] {
+            maxCalls, maxCallsPerAddress, queueTarget
+        });
+        codel = queueTarget == 0 ? null : new CoDel(queueTarget, queueInterval);
+        // built once, rejecting has to be cheaper than executing
+        overloadedContent = ErrorContent.create(new RejectedExecutionException("Server overloaded"));
+    }
+
+    /**
+     * Checks whether this handler limits anything and therefore has to be part of the pipeline.
+     *
+     * @since 1.4
+     * @return true if any limit has been configured
+     */
+    public boolean isLimiting() {
+        return maxCalls != Integer.MAX_VALUE || maxCallsPerAddress != Integer.MAX_VALUE;
+    }
+
+    public Content getOverloadedContent() {
+        return overloadedContent;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        final Object message = event.getMessage();
+        if (message instanceof LegacyHeader && isAdmissible(LegacyHeader.class.cast(message))) {
+            final LegacyHeader header = LegacyHeader.class.cast(message);
+            if (tryAcquire(event.getChannel())) {
+                context.sendUpstream(event);
+            } else {
+                LOG.debug("Rejecting {} from {}", header, event.getRemoteAddress());
+                statistics.callRejected();
+                header.release();
+                Channels.fireMessageReceived(context, new Rejection(header, overloadedContent),
+                    event.getRemoteAddress());
+            }
+        } else {
+            context.sendUpstream(event);
+        }
+    }
+
+    /**
+     * Open and close calls manage the connection itself and are never rejected.
+     */
+    private boolean isAdmissible(LegacyHeader header) {
+        return header.getCallType() != CallType.OPEN && header.getCallType() != CallType.CLOSE;
+    }
+
+    private boolean tryAcquire(Channel channel) {
+        if (!isLimiting()) {
+            return true;
+        }
+        while (true) {
+            final int current = calls.get();
+            if (current >= maxCalls) {
+                return false;
+            } else if (calls.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        final InetAddress address = addressOf(channel);
+        if (address == null || tryAcquire(address)) {
+            return true;
+        } else {
+            calls.decrementAndGet();
+            return false;
+        }
+    }
+
+    private boolean tryAcquire(InetAddress address) {
+        while (true) {
+            AtomicInteger counter = addresses.get(address);
+            if (counter == null) {
+                final AtomicInteger created = new AtomicInteger();
+                counter = addresses.putIfAbsent(address, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            final int current = counter.get();
+            if (current == DEAD) {
+                // lost a race against the last release, try again with a new counter
+                addresses.remove(address, counter);
+                continue;
+            } else if (current >= maxCallsPerAddress) {
+                return false;
+            } else if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases the slot of an admitted call.
+     *
+     * @since 1.4
+     * @param channel the channel the call has been received on
+     */
+    public void release(Channel channel) {
+        if (!isLimiting()) {
+            return;
+        }
+        calls.decrementAndGet();
+        final InetAddress address = addressOf(channel);
+        if (address == null) {
+            return;
+        }
+        final AtomicInteger counter = addresses.get(address);
+        if (counter != null && counter.decrementAndGet() == 0 && counter.compareAndSet(0, DEAD)) {
+            // idle addresses must not pile up
+            addresses.remove(address, counter);
+        }
+    }
+
+    /**
+     * Provides the remote address of the given channel or null if there is no
+     * per address limit or the channel is not connected via ip.
+     */
+    private InetAddress addressOf(Channel channel) {
+        final SocketAddress address = channel.getRemoteAddress();
+        if (maxCallsPerAddress != Integer.MAX_VALUE && address instanceof InetSocketAddress) {
+            return InetSocketAddress.class.cast(address).getAddress();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Decides whether the given call waited too long to be executed. Has to be
+     * called once per call, right before its execution.
+     *
+     * @since 1.4
+     * @param header the header of the call
+     * @return true if the call should be dropped
+     */
+    public boolean isOverdue(LegacyHeader header) {
+        if (codel == null) {
+            return false;
+        }
+        final long now = System.nanoTime();
+        if (codel.shouldDrop(now, now - header.getArrivalTime())) {
+            statistics.callShed();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * The CoDel state machine, fed with the queue time of every call right before its
+     * execution.
+     *
+     * <p>
+     *   A queue time below the target resets everything. The first call above the target
+     *   starts the interval. If no call got below the target until the interval ended,
+     *   the queue is a standing queue: the current call is dropped and the dropping state
+     *   is entered. While dropping, the next call is dropped {@code interval / sqrt(count)}
+     *   after the last drop, so the drop rate increases until the queue time falls below
+     *   the target again. Re-entering the dropping state shortly after leaving it resumes
+     *   with the previous drop rate.
+     * </p>
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    @ThreadSafe
+    static final class CoDel {
+
+        private final long target;
+
+        private final long interval;
+
+        /**
+         * When the queue time will have been above the target for a whole interval, zero if it is below.
+         */
+        @GuardedBy("this")
+        private long firstAbove;
+
+        @GuardedBy("this")
+        private boolean dropping;
+
+        @GuardedBy("this")
+        private long dropNext;
+
+        /**
+         * The number of drops since entering the dropping state.
+         */
+        @GuardedBy("this")
+        private int count;
+
+        @GuardedBy("this")
+        private int lastCount;
+
+        public CoDel(long target, long interval) {
+            Preconditions.checkArgument(target > 0, "Target must be positive");
+            Preconditions.checkArgument(interval > 0, "Interval must be positive");
+            this.target = target;
+            this.interval = interval;
+        }
+
+        /**
+         * Decides whether the current call has to be dropped.
+         *
+         * @since 1.4
+         * @param now the current time in nanoseconds
+         * @param sojourn the time the call spent in the queue in nanoseconds
+         * @return true if the call should be dropped
+         */
+        public synchronized boolean shouldDrop(long now, long sojourn) {
+            final boolean standing = isStanding(now, sojourn);
+            if (dropping) {
+                if (!standing) {
+                    dropping = false;
+                    return false;
+                } else if (now - dropNext >= 0) {
+                    count++;
+                    dropNext = controlLaw(dropNext);
+                    return true;
+                } else {
+                    return false;
+                }
+            } else if (standing) {
+                dropping = true;
+                final int delta = count - lastCount;
+                // dropping again soon after leaving starts at the last rate
+                count = delta > 1 && now - dropNext < 16 * interval ? delta : 1;
+                lastCount = count;
+                dropNext = controlLaw(now);
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        private boolean isStanding(long now, long sojourn) {
+            if (sojourn < target) {
+                firstAbove = 0;
+                return false;
+            } else if (firstAbove == 0) {
+                firstAbove = now + interval;
+                return false;
+            } else {
+                return now - firstAbove >= 0;
+            }
+        }
+
+        private long controlLaw(long time) {
+            return time + (long) (interval / Math.sqrt(count));
+        }
+
+    }
+
+    /**
+     * Replaces a call which has not been admitted.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    static final class Rejection {
+
+        private final LegacyHeader header;
+
+        private final Content content;
+
+        private Rejection(LegacyHeader header, Content content) {
+            this.header = header;
+            this.content = content;
+        }
+
+        /**
+         * Provides the header of the rejected call. Its content has already been released.
+         *
+         * @since 1.4
+         * @return the header
+         */
+        public LegacyHeader getHeader() {
+            return header;
+        }
+
+        public Content getContent() {
+            return content;
+        }
+
+    }
+
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.bridge.command.Alias;
+
+/**
+ * A character level prefix trie over {@link Alias} names which finds the alias
+ * with the longest matching prefix in time proportional to the length of the name.
+ * If multiple aliases share the same name, the first one wins.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@Immutable
+@SuppressWarnings("deprecation")
+final class AliasTrie {
+
+    private final Node root = new Node();
+
+    private final int size;
+
+    private AliasTrie(Collection<? extends Alias> aliases) {
+        this.size = aliases.size();
+        for (Alias alias : aliases) {
+            root.insert(alias.getName(), 0, alias);
+        }
+    }
+
+    /**
+     * Builds a new trie of the given aliases.
+     *
+     * @since 1.4
+     * @param aliases the aliases
+     * @return a new trie
+     * @throws NullPointerException if aliases is null
+     */
+    public static AliasTrie of(Collection<? extends Alias> aliases) {
+        Preconditions.checkNotNull(aliases, "Aliases");
+        return new AliasTrie(aliases);
+    }
+
+    /**
+     * Provides the number of aliases this trie has been built from.
+     *
+     * @since 1.4
+     * @return the number of aliases
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the alias whose name is the longest prefix of the given name.
+     *
+     * @since 1.4
+     * @param name the aliased name
+     * @return the matching alias or null if there is none
+     */
+    public Alias find(String name) {
+        Node node = root;
+        Alias match = root.alias;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.child(name.charAt(i));
+            if (node == null) {
+                break;
+            } else if (node.alias != null) {
+                match = node.alias;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * A single trie node. Children are kept in arrays sorted by their character,
+     * alias namespaces share long prefixes but branch out only a little.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class Node {
+
+        private static final char[] NO_KEYS = {};
+
+        private static final Node[] NO_CHILDREN = {};
+
+        private char[] keys = NO_KEYS;
+
+        private Node[] children = NO_CHILDREN;
+
+        private Alias alias;
+
+        public Node child(char c) {
+            final int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        public void insert(String name, int offset, Alias value) {
+            if (offset == name.length()) {
+                if (alias == null) {
+                    alias = value;
+                }
+                return;
+            }
+            final char c = name.charAt(offset);
+            int index = Arrays.binarySearch(keys, c);
+            if (index < 0) {
+                index = -index - 1;
+                final char[] newKeys = new char[keys.length + 1];
+                final Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, index);
+                System.arraycopy(children, 0, newChildren, 0, index);
+                newKeys[index] = c;
+                newChildren[index] = new Node();
+                System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+                System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+                keys = newKeys;
+                children = newChildren;
+            }
+            children[index].insert(name, offset + 1, value);
+        }
+
+    }
+
+}
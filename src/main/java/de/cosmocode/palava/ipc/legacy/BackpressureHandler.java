@@ -0,0 +1,342 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Watermark based backpressure. Tracks the bytes of call contents which are still
+ * buffered by the frame decoder or have been received but not yet answered and the
+ * bytes of responses which have been written but not yet flushed, per channel and
+ * globally. Contents spilled to disk do not count. This handler is the only one
+ * toggling the readability of legacy channels.
+ *
+ * <p>
+ *   A channel stops reading once its own bytes exceed the channel high watermark and
+ *   resumes when they dropped below the low watermark. Crossing the global high
+ *   watermark only suspends the channels which keep adding bytes, until the global
+ *   amount dropped below the global low watermark. Channels which stay below their
+ *   limits are never slowed down.
+ * </p>
+ *
+ * <p>
+ *   This handler has to be placed right behind the {@link LegacyFrameDecoder}, where it
+ *   sees decoded {@link LegacyHeader}s upstream and encoded responses downstream.
+ *   Received contents are {@link #release(Channel, long) released} by the
+ *   {@link LegacyHandler} once their call has been answered. The frame decoder
+ *   reports the bytes it buffers for incomplete frames after every read, see
+ *   {@link #setBuffered(Channel, long)}.
+ * </p>
+ *
+ * <p>
+ *   Buffered bytes count when deciding whether to suspend a channel, but never suspend
+ *   one on their own and are left out when deciding whether to resume. They only shrink
+ *   once their frame has been read completely, so a suspended channel waiting for them
+ *   would never resume. A single frame is bounded by the maximum content length instead.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@Sharable
+@ThreadSafe
+final class BackpressureHandler extends SimpleChannelHandler implements Initializable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackpressureHandler.class);
+
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * The part of total buffered by frame decoders.
+     */
+    private final AtomicLong buffering = new AtomicLong();
+
+    /**
+     * Channels which have been suspended because of the global watermark.
+     */
+    private final Set<Gauge> suspended = Sets.newSetFromMap(Maps.<Gauge, Boolean>newConcurrentMap());
+
+    private long channelHighWatermark = 1024 * 1024;
+
+    private long channelLowWatermark = 512 * 1024;
+
+    private long globalHighWatermark = 64 * 1024 * 1024;
+
+    private long globalLowWatermark = 32 * 1024 * 1024;
+
+    @Inject(optional = true)
+    void setChannelHighWatermark(@Named(LegacyNettyConfig.CHANNEL_HIGH_WATERMARK) long channelHighWatermark) {
+        Preconditions.checkArgument(channelHighWatermark > 0, "ChannelHighWatermark must be positive");
+        this.channelHighWatermark = channelHighWatermark;
+    }
+
+    @Inject(optional = true)
+    void setChannelLowWatermark(@Named(LegacyNettyConfig.CHANNEL_LOW_WATERMARK) long channelLowWatermark) {
+        Preconditions.checkArgument(channelLowWatermark >= 0, "ChannelLowWatermark must not be negative");
+        this.channelLowWatermark = channelLowWatermark;
+    }
+
+    @Inject(optional = true)
+    void setGlobalHighWatermark(@Named(LegacyNettyConfig.GLOBAL_HIGH_WATERMARK) long globalHighWatermark) {
+        Preconditions.checkArgument(globalHighWatermark > 0, "GlobalHighWatermark must be positive");
+        this.globalHighWatermark = globalHighWatermark;
+    }
+
+    @Inject(optional = true)
+    void setGlobalLowWatermark(@Named(LegacyNettyConfig.GLOBAL_LOW_WATERMARK) long globalLowWatermark) {
+        Preconditions.checkArgument(globalLowWatermark >= 0, "GlobalLowWatermark must not be negative");
+        this.globalLowWatermark = globalLowWatermark;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        Preconditions.checkState(channelLowWatermark <= channelHighWatermark,
+            "ChannelLowWatermark must not exceed ChannelHighWatermark");
+        Preconditions.checkState(globalLowWatermark <= globalHighWatermark,
+            "GlobalLowWatermark must not exceed GlobalHighWatermark");
+        LOG.info("Suspending reads above {} bytes per channel and {} bytes in total",
+            channelHighWatermark, globalHighWatermark);
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        context.setAttachment(new Gauge(event.getChannel()));
+        super.channelOpen(context, event);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        final Object message = event.getMessage();
+        if (message instanceof LegacyHeader) {
+            gaugeOf(context).acquire(LegacyHeader.class.cast(message).getHeapSize());
+        }
+        super.messageReceived(context, event);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        final Object message = event.getMessage();
+        if (message instanceof ChannelBuffer) {
+            final Gauge gauge = gaugeOf(context);
+            final int bytes = ChannelBuffer.class.cast(message).readableBytes();
+            gauge.acquire(bytes);
+            event.getFuture().addListener(new ChannelFutureListener() {
+
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    gauge.release(bytes);
+                }
+
+            });
+        }
+        super.writeRequested(context, event);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        gaugeOf(context).close();
+        super.channelClosed(context, event);
+    }
+
+    /**
+     * Releases the content of a call which has been answered.
+     *
+     * @since 1.4
+     * @param channel the channel the call has been received on
+     * @param bytes the {@link LegacyHeader#getHeapSize() heap size} of the call
+     */
+    public void release(Channel channel, long bytes) {
+        final ChannelHandlerContext context = channel.getPipeline().getContext(this);
+        if (context == null) {
+            return;
+        }
+        gaugeOf(context).release(bytes);
+    }
+
+    /**
+     * Sets the number of bytes the frame decoder of the given channel currently
+     * buffers for frames which have not been completely received yet.
+     *
+     * @since 1.4
+     * @param channel the channel
+     * @param bytes the number of buffered bytes
+     */
+    public void setBuffered(Channel channel, long bytes) {
+        final ChannelHandlerContext context = channel.getPipeline().getContext(this);
+        if (context == null) {
+            return;
+        }
+        gaugeOf(context).setBuffered(bytes);
+    }
+
+    private Gauge gaugeOf(ChannelHandlerContext context) {
+        return Gauge.class.cast(context.getAttachment());
+    }
+
+    private void resumeAll() {
+        for (Gauge gauge : suspended) {
+            if (suspended.remove(gauge)) {
+                gauge.resumeGlobal();
+            }
+        }
+    }
+
+    /**
+     * The bytes held by a single channel.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private final class Gauge {
+
+        private final Channel channel;
+
+        @GuardedBy("this")
+        private long bytes;
+
+        /**
+         * The part of bytes buffered by the frame decoder.
+         */
+        @GuardedBy("this")
+        private long buffered;
+
+        @GuardedBy("this")
+        private boolean local;
+
+        @GuardedBy("this")
+        private boolean global;
+
+        @GuardedBy("this")
+        private boolean closed;
+
+        public Gauge(Channel channel) {
+            this.channel = channel;
+        }
+
+        public void acquire(long amount) {
+            final long sum = total.addAndGet(amount);
+            final boolean overloaded = sum > globalHighWatermark;
+            synchronized (this) {
+                if (closed) {
+                    total.addAndGet(-amount);
+                    return;
+                }
+                bytes += amount;
+                if (bytes > channelHighWatermark && !local) {
+                    LOG.debug("Suspending {} holding {} bytes", channel, bytes);
+                    local = true;
+                    update();
+                }
+                if (overloaded && !global) {
+                    LOG.debug("Suspending {}, {} bytes in total", channel, sum);
+                    global = true;
+                    suspended.add(this);
+                    update();
+                }
+            }
+        }
+
+        public void release(long amount) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                bytes -= amount;
+                if (local && bytes - buffered <= channelLowWatermark) {
+                    LOG.debug("Resuming {} holding {} bytes", channel, bytes);
+                    local = false;
+                    update();
+                }
+            }
+            if (total.addAndGet(-amount) - buffering.get() <= globalLowWatermark && !suspended.isEmpty()) {
+                resumeAll();
+            }
+        }
+
+        /**
+         * Only called by the I/O thread of the channel, so updates are never reordered.
+         * Neither suspends nor resumes, the bytes held apart from the buffered ones
+         * stay the same.
+         */
+        public synchronized void setBuffered(long amount) {
+            if (closed) {
+                return;
+            }
+            final long delta = amount - buffered;
+            buffered = amount;
+            bytes += delta;
+            buffering.addAndGet(delta);
+            total.addAndGet(delta);
+        }
+
+        public synchronized void resumeGlobal() {
+            if (global) {
+                global = false;
+                update();
+            }
+        }
+
+        public void close() {
+            final long remaining;
+            final long remainingBuffered;
+            synchronized (this) {
+                closed = true;
+                remaining = bytes;
+                remainingBuffered = buffered;
+                bytes = 0;
+                buffered = 0;
+            }
+            suspended.remove(this);
+            buffering.addAndGet(-remainingBuffered);
+            total.addAndGet(-remaining);
+        }
+
+        @GuardedBy("this")
+        private void update() {
+            if (!closed) {
+                channel.setReadable(!local && !global);
+            }
+        }
+
+    }
+
+}
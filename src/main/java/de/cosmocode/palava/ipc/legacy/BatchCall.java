@@ -16,23 +16,23 @@
 
 package de.cosmocode.palava.ipc.legacy;
 
-import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
+import java.util.List;
 
 /**
- * A reusable {@link ChannelFutureListener} which set the {@link Channel} readable.
+ * A call which bundles multiple independent calls into one frame.
  *
- * @since 1.1
+ * @since 1.4
  * @author Willi Schoenborn
  */
-enum SetReadable implements ChannelFutureListener {
+interface BatchCall extends DetachedCall {
 
-    INSTANCE;
-    
-    @Override
-    public void operationComplete(ChannelFuture future) throws Exception {
-        future.getChannel().setReadable(true);
-    }
+    /**
+     * Provides the bundled calls, in the order they were sent.
+     * 
+     * @since 1.4
+     * @return the calls of this batch
+     * @throws IllegalArgumentException if the content of this batch is malformed
+     */
+    List<DetachedCall> getCalls();
     
 }
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Enforces call deadlines by interrupting the executing thread once a call ran
+ * longer than its timeout or once its connection has been closed.
+ *
+ * <p>
+ *   The timeout of a call is the configured default, unless the command is annotated
+ *   with {@link Deadline}. A timeout passed by the client when opening the connection
+ *   caps both. Deadlines are not enforced in {@link ExecutionMode#IO} mode, because
+ *   interrupting an I/O thread would close every channel it serves.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+final class CallDeadlines implements Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CallDeadlines.class);
+
+    private final LegacyExecution execution;
+
+    private long defaultTimeout;
+
+    private boolean enabled;
+
+    private ScheduledExecutorService scheduler;
+
+    @Inject
+    public CallDeadlines(LegacyExecution execution) {
+        this.execution = Preconditions.checkNotNull(execution, "Execution");
+    }
+
+    /**
+     * Sets the default timeout in milliseconds, zero disables it.
+     */
+    @Inject(optional = true)
+    void setDefaultTimeout(@Named(LegacyNettyConfig.CALL_TIMEOUT) long defaultTimeout) {
+        Preconditions.checkArgument(defaultTimeout >= 0, "CallTimeout must not be negative");
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        enabled = execution.getMode() != ExecutionMode.IO;
+        if (enabled) {
+            LOG.info("Enforcing call deadlines, default timeout is {}ms", defaultTimeout);
+            scheduler = Executors.newSingleThreadScheduledExecutor(DeadlineThreadFactory.INSTANCE);
+        } else {
+            LOG.info("Call deadlines are not enforced when executing on I/O threads");
+        }
+    }
+
+    /**
+     * Computes the timeout of the given command.
+     *
+     * @since 1.4
+     * @param type the type of the command, null if it could not be resolved
+     * @param cap the timeout requested by the client, zero if none
+     * @return the timeout in milliseconds, zero if unlimited
+     */
+    long timeoutOf(Class<?> type, long cap) {
+        final Deadline deadline = type == null ? null : type.getAnnotation(Deadline.class);
+        final long timeout = deadline == null ? defaultTimeout : deadline.value();
+        if (cap > 0 && (timeout == 0 || cap < timeout)) {
+            return cap;
+        } else {
+            return timeout;
+        }
+    }
+
+    /**
+     * Starts watching the current thread which is about to execute the given command.
+     * The returned watch has to be {@link Watch#finish() finished} by the same thread.
+     *
+     * @since 1.4
+     * @param type the already resolved type of the command, null if it could not be resolved
+     * @param cap the timeout requested by the client, zero if none
+     * @return a new watch
+     */
+    public Watch watch(Class<?> type, long cap) {
+        final Watch watch = new Watch(Thread.currentThread(), enabled);
+        if (enabled) {
+            final long timeout = timeoutOf(type, cap);
+            if (timeout > 0) {
+                watch.future = scheduler.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        watch.expire();
+                    }
+
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        return watch;
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * A single running call.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    static final class Watch {
+
+        private final Thread thread;
+
+        private final boolean interruptible;
+
+        private volatile ScheduledFuture<?> future;
+
+        @GuardedBy("this")
+        private boolean done;
+
+        @GuardedBy("this")
+        private boolean interrupted;
+
+        private volatile boolean expired;
+
+        private Watch(Thread thread, boolean interruptible) {
+            this.thread = thread;
+            this.interruptible = interruptible;
+        }
+
+        private synchronized void expire() {
+            if (!done) {
+                expired = true;
+                interrupt();
+            }
+        }
+
+        /**
+         * Cancels the call because nobody will read its response.
+         *
+         * @since 1.4
+         */
+        public synchronized void cancel() {
+            if (!done && interruptible) {
+                interrupt();
+            }
+        }
+
+        @GuardedBy("this")
+        private void interrupt() {
+            interrupted = true;
+            thread.interrupt();
+        }
+
+        /**
+         * Stops watching. Interrupts caused by this watch will not leak
+         * into whatever the thread executes next.
+         *
+         * @since 1.4
+         */
+        public void finish() {
+            final boolean clear;
+            synchronized (this) {
+                done = true;
+                clear = interrupted;
+            }
+            if (future != null) {
+                future.cancel(false);
+            }
+            if (clear) {
+                Thread.interrupted();
+            }
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+
+    }
+
+    /**
+     * Creates the daemon thread which fires deadlines.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private enum DeadlineThreadFactory implements ThreadFactory {
+
+        INSTANCE;
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "legacy-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
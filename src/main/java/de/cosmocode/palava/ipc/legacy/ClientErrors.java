@@ -0,0 +1,155 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.bridge.Content;
+import de.cosmocode.palava.bridge.call.MissingArgumentException;
+import de.cosmocode.palava.bridge.content.ErrorContent;
+import de.cosmocode.palava.ipc.IpcCommandExecutionException;
+
+/**
+ * Separates expected client errors from server faults.
+ *
+ * <p>
+ *   Client errors, like missing arguments, unknown commands or commands signalling
+ *   a failure on purpose, are raised at the rate of the worst client. They are answered
+ *   without stack traces and logged at most once per configured interval. Everything
+ *   else is a server fault and keeps its full detail.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+@SuppressWarnings("deprecation")
+final class ClientErrors {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClientErrors.class);
+
+    private long logInterval = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong nextLog = new AtomicLong(System.nanoTime());
+
+    private final AtomicInteger suppressed = new AtomicInteger();
+
+    /**
+     * Sets the minimum time between two client error log lines in milliseconds,
+     * zero logs every client error.
+     */
+    @Inject(optional = true)
+    void setLogInterval(@Named(LegacyNettyConfig.CLIENT_ERROR_LOG_INTERVAL) long logInterval) {
+        Preconditions.checkArgument(logInterval >= 0, "LogInterval must not be negative");
+        this.logInterval = TimeUnit.MILLISECONDS.toNanos(logInterval);
+    }
+
+    /**
+     * Checks whether the given throwable has been caused by the client rather than by the server.
+     * An {@link IpcCommandExecutionException} is only a client error if it has no cause, any
+     * wrapped exception is considered a server fault.
+     *
+     * @since 1.4
+     * @param throwable the throwable
+     * @return true if throwable is an expected client error
+     */
+    public boolean isClientError(Throwable throwable) {
+        if (throwable instanceof MissingArgumentException || throwable instanceof UnknownCommandException) {
+            return true;
+        } else if (throwable instanceof IpcCommandExecutionException) {
+            return throwable.getCause() == null;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the error content for the given failure. Client errors are answered
+     * without their stack traces and logged rate limited, server faults are passed
+     * through unchanged and have to be logged by the caller. The given throwable
+     * is never modified, commands may still hold on to it.
+     *
+     * @since 1.4
+     * @param throwable the failure
+     * @return the error content
+     * @throws NullPointerException if throwable is null
+     */
+    public Content create(Throwable throwable) {
+        Preconditions.checkNotNull(throwable, "Throwable");
+        if (isClientError(throwable)) {
+            log(throwable);
+            return ErrorContent.create(new Stackless(throwable));
+        } else {
+            return ErrorContent.create(throwable);
+        }
+    }
+
+    private void log(Throwable throwable) {
+        if (!LOG.isInfoEnabled()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long next = nextLog.get();
+        if (now - next >= 0 && nextLog.compareAndSet(next, now + logInterval)) {
+            LOG.info("Client error {}, {} more since the last report", throwable, suppressed.getAndSet(0));
+        } else {
+            suppressed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stands in for a client error in its error content, rendering like the original
+     * but without a stack trace.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class Stackless extends Exception {
+
+        private static final long serialVersionUID = 2516331578926432837L;
+
+        private final String description;
+
+        public Stackless(Throwable original) {
+            super(original.getMessage());
+            this.description = original.toString();
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+
+    }
+
+}
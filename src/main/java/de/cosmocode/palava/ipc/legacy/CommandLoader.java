@@ -33,4 +33,15 @@ interface CommandLoader {
      */
     Object load(String aliasedName);
     
+    /**
+     * Resolves the class of the named command, without creating an instance or
+     * looking up its binding.
+     * 
+     * @since 1.4
+     * @param aliasedName the aliased name
+     * @return the type addressed by aliasedName
+     * @throws IllegalArgumentException if there is no such type
+     */
+    Class<?> getType(String aliasedName);
+    
 }
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * A {@link Map} optimized for very few entries. Up to {@value #THRESHOLD} entries
+ * are stored in a single array of alternating keys and values and looked up by a
+ * linear scan. Adding more entries inflates the map into a {@link HashMap}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+@NotThreadSafe
+final class CompactMap<K, V> extends AbstractMap<K, V> {
+
+    private static final int THRESHOLD = 8;
+
+    private static final int INITIAL_CAPACITY = 2;
+
+    private Object[] table;
+
+    private int size;
+
+    private Map<K, V> delegate;
+
+    private Set<Map.Entry<K, V>> entrySet;
+
+    @Override
+    public int size() {
+        return delegate == null ? size : delegate.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return delegate == null ? indexOf(key) != -1 : delegate.containsKey(key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (delegate == null) {
+            final int index = indexOf(key);
+            return index == -1 ? null : (V) table[index + 1];
+        } else {
+            return delegate.get(key);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (delegate != null) {
+            return delegate.put(key, value);
+        }
+        final int index = indexOf(key);
+        if (index == -1) {
+            if (size == THRESHOLD) {
+                inflate();
+                return delegate.put(key, value);
+            }
+            ensureCapacity();
+            table[size * 2] = key;
+            table[size * 2 + 1] = value;
+            size++;
+            return null;
+        } else {
+            final V old = (V) table[index + 1];
+            table[index + 1] = value;
+            return old;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (delegate != null) {
+            return delegate.remove(key);
+        }
+        final int index = indexOf(key);
+        if (index == -1) {
+            return null;
+        } else {
+            final V old = (V) table[index + 1];
+            removeAt(index);
+            return old;
+        }
+    }
+
+    @Override
+    public void clear() {
+        delegate = null;
+        table = null;
+        size = 0;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (delegate != null) {
+            return delegate.entrySet();
+        } else if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < size * 2; i += 2) {
+            final Object candidate = table[i];
+            if (candidate == key || (key != null && key.equals(candidate))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureCapacity() {
+        if (table == null) {
+            table = new Object[INITIAL_CAPACITY * 2];
+        } else if (table.length == size * 2) {
+            final Object[] grown = new Object[Math.min(table.length * 2, THRESHOLD * 2)];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            table = grown;
+        }
+    }
+
+    /**
+     * Removes the pair at the given index by moving the last pair into its place.
+     */
+    private void removeAt(int index) {
+        final int last = (size - 1) * 2;
+        table[index] = table[last];
+        table[index + 1] = table[last + 1];
+        table[last] = null;
+        table[last + 1] = null;
+        size--;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void inflate() {
+        final Map<K, V> map = new HashMap<K, V>(THRESHOLD * 4);
+        for (int i = 0; i < size * 2; i += 2) {
+            map.put((K) table[i], (V) table[i + 1]);
+        }
+        delegate = map;
+        table = null;
+        size = 0;
+        entrySet = null;
+    }
+
+    /**
+     * Entry set view of the array representation.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+    }
+
+    /**
+     * Iterator over the array representation.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private int next;
+
+        private int current = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size * 2;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next += 2;
+            return new Entry(current);
+        }
+
+        @Override
+        public void remove() {
+            if (current == -1) {
+                throw new IllegalStateException();
+            }
+            removeAt(current);
+            // the last pair moved into the current slot, visit it next
+            next = current;
+            current = -1;
+        }
+
+    }
+
+    /**
+     * A write-through entry of the array representation.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private final class Entry implements Map.Entry<K, V> {
+
+        private final K key;
+
+        private V value;
+
+        @SuppressWarnings("unchecked")
+        public Entry(int index) {
+            this.key = (K) table[index];
+            this.value = (V) table[index + 1];
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V v) {
+            final V old = value;
+            value = v;
+            put(key, v);
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (that instanceof Map.Entry<?, ?>) {
+                final Map.Entry<?, ?> other = (Map.Entry<?, ?>) that;
+                return eq(key, other.getKey()) && eq(value, other.getValue());
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+
+        private boolean eq(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+    }
+
+}
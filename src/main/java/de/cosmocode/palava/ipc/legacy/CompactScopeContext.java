@@ -0,0 +1,48 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Map;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import de.cosmocode.palava.scope.AbstractScopeContext;
+import de.cosmocode.palava.scope.ConcurrentMapScopeContext;
+
+/**
+ * A lightweight {@link AbstractScopeContext} for scopes which are only ever
+ * accessed by one thread at a time, like the call scope. In contrast to
+ * {@link ConcurrentMapScopeContext} the backing map is only allocated
+ * on first use and stays a small array as long as it holds a few entries.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@NotThreadSafe
+abstract class CompactScopeContext extends AbstractScopeContext {
+
+    private Map<Object, Object> context;
+
+    @Override
+    protected Map<Object, Object> context() {
+        if (context == null) {
+            context = new CompactMap<Object, Object>();
+        }
+        return context;
+    }
+
+}
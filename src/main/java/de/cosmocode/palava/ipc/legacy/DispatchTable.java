@@ -0,0 +1,133 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Map;
+
+import javax.annotation.concurrent.Immutable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Provider;
+
+/**
+ * An immutable table of pre-resolved and pre-classified commands, built once
+ * during startup by the {@link LegacyWarmup}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@Immutable
+final class DispatchTable {
+
+    static final DispatchTable EMPTY = new DispatchTable(ImmutableMap.<String, Dispatch>of());
+
+    private final Map<String, Dispatch> dispatches;
+
+    private DispatchTable(Map<String, Dispatch> dispatches) {
+        this.dispatches = dispatches;
+    }
+
+    /**
+     * Creates a new table of the given dispatches.
+     *
+     * @since 1.4
+     * @param dispatches the dispatches by resolved class name
+     * @return a new table
+     */
+    public static DispatchTable of(Map<String, Dispatch> dispatches) {
+        return new DispatchTable(ImmutableMap.copyOf(dispatches));
+    }
+
+    /**
+     * Looks up the given command. Aliases have to be resolved already, so every
+     * spelling of a command shares the same entry.
+     *
+     * @since 1.4
+     * @param type the resolved command type
+     * @return the dispatch or null if the command has not been warmed up
+     * @throws NullPointerException if type is null
+     */
+    public Dispatch get(Class<?> type) {
+        return dispatches.get(type.getName());
+    }
+
+    public int size() {
+        return dispatches.size();
+    }
+
+    /**
+     * The two kinds of executable commands.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    enum Kind {
+
+        /**
+         * An {@link de.cosmocode.palava.ipc.IpcCommand}.
+         */
+        COMMAND,
+
+        /**
+         * A {@link de.cosmocode.palava.bridge.command.Job}.
+         */
+        JOB;
+
+    }
+
+    /**
+     * A single resolved command.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    @Immutable
+    static final class Dispatch {
+
+        private final Kind kind;
+
+        private final String className;
+
+        private final Provider<?> provider;
+
+        public Dispatch(Kind kind, Class<?> type, Provider<?> provider) {
+            this.kind = Preconditions.checkNotNull(kind, "Kind");
+            this.className = type.getName();
+            this.provider = Preconditions.checkNotNull(provider, "Provider");
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public Provider<?> getProvider() {
+            return provider;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Dispatch [kind=%s, className=%s]", kind, className);
+        }
+
+    }
+
+}
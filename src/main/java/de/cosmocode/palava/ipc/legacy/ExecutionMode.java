@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+/**
+ * Identifies where legacy calls are executed.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public enum ExecutionMode {
+
+    /**
+     * Calls are executed directly on the netty I/O thread which received them.
+     */
+    IO,
+    
+    /**
+     * Calls are handed off to a bounded worker pool which preserves the order
+     * of calls per channel.
+     */
+    POOLED,
+    
+    /**
+     * Every call is executed on a new virtual thread. Calls of the same channel
+     * are still executed in order. JVMs without virtual threads fall back to
+     * {@link #POOLED} with a warning.
+     */
+    VIRTUAL;
+    
+}
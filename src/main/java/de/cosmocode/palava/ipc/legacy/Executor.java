@@ -33,10 +33,11 @@ interface Executor {
     /**
      * Executes the name command/job using the specified call.
      * 
-     * @since 1.0
+     * @since 1.4
      * @param call the incoming call
+     * @param type the type the aliased name of the call has already been resolved to
      * @return the produced content or error content in case execution failed
      */
-    Content execute(Call call);
+    Content execute(Call call, Class<?> type);
     
 }
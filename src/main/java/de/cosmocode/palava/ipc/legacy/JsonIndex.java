@@ -0,0 +1,371 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A token index over the raw bytes of a json object. Indexing scans the
+ * content exactly once and only records where the value of each top level key
+ * starts and ends. Values are materialized on demand, so a command which reads
+ * one argument of a large call does not pay for building the complete tree.
+ *
+ * <p>
+ *   Materialized values are the same types {@link JSONObject#get(String)} would
+ *   return: {@link String}, {@link Boolean}, {@link Number}, {@link JSONObject},
+ *   {@link org.json.JSONArray} or {@link JSONObject#NULL}.
+ * </p>
+ *
+ * <p>
+ *   Top level literals and numbers are validated while scanning and duplicate keys
+ *   are rejected, just like {@link JSONObject} does. Nested values are validated
+ *   once they are materialized.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@NotThreadSafe
+final class JsonIndex {
+
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    private final ChannelBuffer buffer;
+
+    /**
+     * Maps keys to the location of their value, in document order.
+     */
+    private final Map<String, Span> spans = new LinkedHashMap<String, Span>();
+
+    private JsonIndex(ChannelBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Indexes the readable bytes of the given buffer. The buffer must not be
+     * modified as long as the returned index is in use.
+     *
+     * @since 1.4
+     * @param buffer the buffer containing a json object
+     * @return a new index
+     * @throws IllegalArgumentException if the content is not a well formed json object
+     *         or contains duplicate keys
+     */
+    public static JsonIndex of(ChannelBuffer buffer) {
+        final JsonIndex index = new JsonIndex(buffer);
+        index.scan();
+        return index;
+    }
+
+    public Set<String> keySet() {
+        return spans.keySet();
+    }
+
+    public boolean containsKey(Object key) {
+        return spans.containsKey(key);
+    }
+
+    /**
+     * Materializes the value of the specified key.
+     *
+     * @since 1.4
+     * @param key the key
+     * @return the value or null if there is no such key
+     * @throws IllegalArgumentException if the value could not be parsed
+     */
+    public Object get(Object key) {
+        final Span span = spans.get(key);
+        if (span == null) {
+            return null;
+        } else if (span.value == null) {
+            span.value = materialize(span.start, span.end);
+        }
+        return span.value;
+    }
+
+    private Object materialize(int start, int end) {
+        final byte first = buffer.getByte(start);
+        if (first == '"' && buffer.indexOf(start, end, (byte) '\\') == -1) {
+            // the most common case, a string without escapes
+            return buffer.toString(start + 1, end - start - 2, Charsets.UTF_8);
+        } else if (first == 't') {
+            // literals have been validated during the scan
+            return Boolean.TRUE;
+        } else if (first == 'f') {
+            return Boolean.FALSE;
+        } else if (first == 'n') {
+            return JSONObject.NULL;
+        } else {
+            try {
+                return new JSONTokener(buffer.toString(start, end - start, Charsets.UTF_8)).nextValue();
+            } catch (JSONException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    private void scan() {
+        final int end = buffer.writerIndex();
+        int i = skipWhitespace(buffer.readerIndex(), end);
+        i = expect(i, end, '{');
+        i = skipWhitespace(i, end);
+        if (peek(i, end) == '}') {
+            return;
+        }
+        while (true) {
+            final int keyStart = i;
+            i = skipString(i, end);
+            final String key = decodeKey(keyStart, i);
+            i = skipWhitespace(i, end);
+            i = expect(i, end, ':');
+            i = skipWhitespace(i, end);
+            final int valueStart = i;
+            i = skipValue(i, end);
+            if (spans.put(key, new Span(valueStart, i)) != null) {
+                throw new IllegalArgumentException(String.format("Duplicate key \"%s\" at %s", key, keyStart));
+            }
+            i = skipWhitespace(i, end);
+            final byte c = peek(i, end);
+            if (c == ',') {
+                i = skipWhitespace(i + 1, end);
+            } else if (c == '}') {
+                return;
+            } else {
+                throw unexpected(i, c);
+            }
+        }
+    }
+
+    private String decodeKey(int start, int end) {
+        if (buffer.indexOf(start, end, (byte) '\\') == -1) {
+            return buffer.toString(start + 1, end - start - 2, Charsets.UTF_8);
+        } else {
+            try {
+                return (String) new JSONTokener(buffer.toString(start, end - start, Charsets.UTF_8)).nextValue();
+            } catch (JSONException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    private int skipValue(int start, int end) {
+        final byte c = peek(start, end);
+        if (c == '"') {
+            return skipString(start, end);
+        } else if (c == '{' || c == '[') {
+            return skipStructure(start, end);
+        } else {
+            int i = start;
+            while (i < end && !isScalarEnd(buffer.getByte(i))) {
+                i++;
+            }
+            if (i == start) {
+                throw unexpected(start, c);
+            }
+            checkScalar(start, i);
+            return i;
+        }
+    }
+
+    /**
+     * Checks that the given token is one of the literals or a number.
+     */
+    private void checkScalar(int start, int end) {
+        final byte first = buffer.getByte(start);
+        final boolean valid;
+        if (first == 't') {
+            valid = matches(start, end, TRUE);
+        } else if (first == 'f') {
+            valid = matches(start, end, FALSE);
+        } else if (first == 'n') {
+            valid = matches(start, end, NULL);
+        } else {
+            valid = isNumber(start, end);
+        }
+        if (!valid) {
+            throw new IllegalArgumentException(String.format(
+                "Invalid value '%s' at %s", buffer.toString(start, end - start, Charsets.UTF_8), start
+            ));
+        }
+    }
+
+    private boolean matches(int start, int end, byte[] literal) {
+        if (end - start != literal.length) {
+            return false;
+        }
+        for (int i = 0; i < literal.length; i++) {
+            if (buffer.getByte(start + i) != literal[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Matches {@code -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?}.
+     */
+    private boolean isNumber(int start, int end) {
+        int i = start;
+        if (i < end && buffer.getByte(i) == '-') {
+            i++;
+        }
+        if (i < end && buffer.getByte(i) == '0') {
+            i++;
+        } else {
+            final int digits = skipDigits(i, end);
+            if (digits == i) {
+                return false;
+            }
+            i = digits;
+        }
+        if (i < end && buffer.getByte(i) == '.') {
+            final int digits = skipDigits(i + 1, end);
+            if (digits == i + 1) {
+                return false;
+            }
+            i = digits;
+        }
+        if (i < end && (buffer.getByte(i) == 'e' || buffer.getByte(i) == 'E')) {
+            i++;
+            if (i < end && (buffer.getByte(i) == '+' || buffer.getByte(i) == '-')) {
+                i++;
+            }
+            final int digits = skipDigits(i, end);
+            if (digits == i) {
+                return false;
+            }
+            i = digits;
+        }
+        return i == end;
+    }
+
+    private int skipDigits(int start, int end) {
+        int i = start;
+        while (i < end && buffer.getByte(i) >= '0' && buffer.getByte(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipStructure(int start, int end) {
+        int depth = 0;
+        int i = start;
+        while (true) {
+            final byte c = peek(i, end);
+            if (c == '"') {
+                i = skipString(i, end);
+                continue;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+            i++;
+        }
+    }
+
+    private int skipString(int start, int end) {
+        int i = expect(start, end, '"');
+        while (true) {
+            final byte c = peek(i, end);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private int skipWhitespace(int start, int end) {
+        int i = start;
+        while (i < end && isWhitespace(buffer.getByte(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private int expect(int i, int end, char expected) {
+        final byte c = peek(i, end);
+        if (c == expected) {
+            return i + 1;
+        } else {
+            throw unexpected(i, c);
+        }
+    }
+
+    private byte peek(int i, int end) {
+        if (i < end) {
+            return buffer.getByte(i);
+        } else {
+            throw new IllegalArgumentException("Unexpected end of json content at " + i);
+        }
+    }
+
+    private IllegalArgumentException unexpected(int i, byte c) {
+        return new IllegalArgumentException(String.format("Unexpected character '%s' at %s", (char) c, i));
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private static boolean isScalarEnd(byte c) {
+        return c == ',' || c == '}' || c == ']' || isWhitespace(c);
+    }
+
+    /**
+     * The location of a single value.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class Span {
+
+        private final int start;
+
+        private final int end;
+
+        private Object value;
+
+        public Span(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+    }
+
+}
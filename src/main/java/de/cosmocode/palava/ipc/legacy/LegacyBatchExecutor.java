@@ -0,0 +1,143 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.bridge.Content;
+import de.cosmocode.palava.bridge.content.ErrorContent;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Runs the entries of a {@link BatchCall} in parallel on a bounded pool
+ * which is shared by all connections.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+@SuppressWarnings("deprecation")
+final class LegacyBatchExecutor implements Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LegacyBatchExecutor.class);
+
+    private int threads = 8;
+
+    private int maxBatchSize = 64;
+
+    private ExecutorService service;
+
+    @Inject(optional = true)
+    void setThreads(@Named(LegacyNettyConfig.BATCH_THREADS) int threads) {
+        Preconditions.checkArgument(threads > 0, "Threads must be positive");
+        this.threads = threads;
+    }
+
+    @Inject(optional = true)
+    void setMaxBatchSize(@Named(LegacyNettyConfig.MAX_BATCH_SIZE) int maxBatchSize) {
+        Preconditions.checkArgument(maxBatchSize > 0, "MaxBatchSize must be positive");
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        LOG.info("Executing batch entries using {} threads", threads);
+        service = Executors.newFixedThreadPool(threads, new BatchThreadFactory());
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Executes all given tasks in parallel and waits for them to complete.
+     * Failed tasks are reported as {@link ErrorContent}s.
+     *
+     * @since 1.4
+     * @param tasks the tasks to execute
+     * @return the contents, in the order of the given tasks
+     */
+    public List<Content> execute(List<? extends Callable<Content>> tasks) {
+        if (tasks.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<Content> contents = new ArrayList<Content>(tasks.size());
+        try {
+            for (Future<Content> future : service.invokeAll(tasks)) {
+                try {
+                    contents.add(future.get());
+                } catch (ExecutionException e) {
+                    contents.add(ErrorContent.create(e));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final Content error = ErrorContent.create(e);
+            while (contents.size() < tasks.size()) {
+                contents.add(error);
+            }
+        }
+        return contents;
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (service != null) {
+            service.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates named daemon batch threads.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class BatchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "legacy-batch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
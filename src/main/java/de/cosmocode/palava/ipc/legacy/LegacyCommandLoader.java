@@ -16,14 +16,20 @@
 
 package de.cosmocode.palava.ipc.legacy;
 
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.name.Named;
 
 import de.cosmocode.commons.reflect.Reflection;
 import de.cosmocode.palava.bridge.SupersededBy;
@@ -31,6 +37,27 @@ import de.cosmocode.palava.bridge.command.Alias;
 
 /**
  * Legacy implementation of the {@link CommandLoader} interface.
+ * 
+ * <p>
+ *   Resolving a name means applying aliases, loading the class, following
+ *   {@link SupersededBy} and looking up the binding. The result is cached per
+ *   aliased name, so the hot path is a single map lookup and a provider call.
+ *   The cache is bounded, when full an arbitrary entry is evicted. The binding is
+ *   looked up on the first {@link #load(String) load}, so {@link #getType(String)}
+ *   succeeds for every existing class and classes the injector can't bind fail
+ *   every single call they are loaded for.
+ * </p>
+ * 
+ * <p>
+ *   Aliases are matched using an {@link AliasTrie}, the alias with the longest matching
+ *   prefix wins. The trie is built once, the bound set of aliases never changes.
+ * </p>
+ * 
+ * <p>
+ *   Names which do not resolve to a class are remembered for a while, so repeated
+ *   calls fail with an {@link UnknownCommandException} without searching the
+ *   classpath again.
+ * </p>
  *
  * @since 1.0
  * @author Willi Schoenborn
@@ -42,37 +69,127 @@ final class LegacyCommandLoader implements CommandLoader {
 
     private final Injector injector;
     
-    private final Set<Alias> aliases;
+    private final AliasTrie trie;
+    
+    private final LegacyStatistics statistics;
+    
+    private final ConcurrentMap<String, Resolution> cache = Maps.newConcurrentMap();
+    
+    /**
+     * Maps unresolvable names to the point in time their entry expires.
+     */
+    private final ConcurrentMap<String, Long> unknown = Maps.newConcurrentMap();
+    
+    private int maxCacheSize = 1024;
+    
+    private int maxUnknownCacheSize = 1024;
+    
+    private long unknownTtl = TimeUnit.MINUTES.toNanos(1);
 
     @Inject
-    public LegacyCommandLoader(Injector injector, Set<Alias> aliases) {
+    public LegacyCommandLoader(Injector injector, Set<Alias> aliases, LegacyStatistics statistics) {
         this.injector = Preconditions.checkNotNull(injector, "Injector");
-        this.aliases = Preconditions.checkNotNull(aliases, "Aliases");
+        this.trie = AliasTrie.of(Preconditions.checkNotNull(aliases, "Aliases"));
+        this.statistics = Preconditions.checkNotNull(statistics, "Statistics");
+        LOG.debug("Built alias trie of {} aliases", trie.size());
+    }
+    
+    @Inject(optional = true)
+    void setMaxCacheSize(@Named(LegacyNettyConfig.COMMAND_CACHE_SIZE) int maxCacheSize) {
+        Preconditions.checkArgument(maxCacheSize >= 0, "CommandCacheSize must not be negative");
+        this.maxCacheSize = maxCacheSize;
+    }
+    
+    @Inject(optional = true)
+    void setMaxUnknownCacheSize(@Named(LegacyNettyConfig.UNKNOWN_COMMAND_CACHE_SIZE) int maxUnknownCacheSize) {
+        Preconditions.checkArgument(maxUnknownCacheSize >= 0, "UnknownCommandCacheSize must not be negative");
+        this.maxUnknownCacheSize = maxUnknownCacheSize;
+    }
+    
+    /**
+     * Sets how long unresolvable names are remembered, in milliseconds.
+     */
+    @Inject(optional = true)
+    void setUnknownTtl(@Named(LegacyNettyConfig.UNKNOWN_COMMAND_TTL) long unknownTtl) {
+        Preconditions.checkArgument(unknownTtl >= 0, "UnknownCommandTtl must not be negative");
+        this.unknownTtl = TimeUnit.MILLISECONDS.toNanos(unknownTtl);
     }
 
     @Override
     public Object load(String aliasedName) {
+        return resolve(aliasedName).getProvider().get();
+    }
+    
+    @Override
+    public Class<?> getType(String aliasedName) {
+        return resolve(aliasedName).type;
+    }
+    
+    private Resolution resolve(String aliasedName) {
         Preconditions.checkNotNull(aliasedName, "AliasedName");
+        final Resolution cached = cache.get(aliasedName);
+        if (cached != null) {
+            return cached;
+        }
+        
+        checkUnknown(aliasedName);
+        
         final String realName = toRealName(aliasedName);
-        final Class<?> type = getTarget(forName(realName));
-        return injector.getInstance(type);
+        final Class<?> type = getTarget(forName(aliasedName, realName));
+        final Resolution resolution = new Resolution(type);
+        
+        if (maxCacheSize > 0) {
+            if (cache.size() >= maxCacheSize) {
+                evict();
+            }
+            cache.put(aliasedName, resolution);
+        }
+        return resolution;
+    }
+    
+    private void evict() {
+        final Iterator<String> iterator = cache.keySet().iterator();
+        if (iterator.hasNext()) {
+            final String name = iterator.next();
+            LOG.trace("Evicting {}", name);
+            iterator.remove();
+        }
+    }
+    
+    private void checkUnknown(String aliasedName) {
+        final Long expiry = unknown.get(aliasedName);
+        if (expiry == null) {
+            return;
+        } else if (System.nanoTime() - expiry < 0) {
+            statistics.unknownCommandHit();
+            throw new UnknownCommandException(aliasedName);
+        } else {
+            unknown.remove(aliasedName, expiry);
+        }
     }
     
-    private Class<?> forName(String name) {
+    private Class<?> forName(String aliasedName, String name) {
         try {
             return Reflection.forName(name);
         } catch (ClassNotFoundException e) {
-            throw new IllegalArgumentException(e);
+            if (maxUnknownCacheSize > 0) {
+                if (unknown.size() >= maxUnknownCacheSize) {
+                    // crawlers produce endless distinct names, forget an arbitrary one
+                    final Iterator<String> iterator = unknown.keySet().iterator();
+                    if (iterator.hasNext()) {
+                        iterator.next();
+                        iterator.remove();
+                    }
+                }
+                unknown.put(aliasedName, System.nanoTime() + unknownTtl);
+            }
+            throw new UnknownCommandException(aliasedName);
         }
     }
 
     private String toRealName(String aliasedName) {
-        for (Alias alias : aliases) {
-            if (aliasedName.startsWith(alias.getName())) {
-                return alias.apply(aliasedName);
-            }
-        }
-        return aliasedName;
+        final Alias alias = trie.find(aliasedName);
+        return alias == null ? aliasedName : alias.apply(aliasedName);
     }
     
     private Class<?> getTarget(Class<?> type) {
@@ -86,4 +203,34 @@ final class LegacyCommandLoader implements CommandLoader {
         }
     }
     
+    /**
+     * The resolved type of an aliased name and its lazily looked up provider.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private final class Resolution {
+        
+        private final Class<?> type;
+        
+        private volatile Provider<?> provider;
+        
+        public Resolution(Class<?> type) {
+            this.type = type;
+        }
+        
+        /**
+         * Racing threads may both look up the provider, the injector returns equivalent ones.
+         */
+        public Provider<?> getProvider() {
+            Provider<?> current = provider;
+            if (current == null) {
+                current = injector.getProvider(type);
+                provider = current;
+            }
+            return current;
+        }
+        
+    }
+    
 }
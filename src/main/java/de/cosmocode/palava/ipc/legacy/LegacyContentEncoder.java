@@ -16,18 +16,30 @@
 
 package de.cosmocode.palava.ipc.legacy;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 import de.cosmocode.palava.bridge.Content;
 
@@ -37,6 +49,29 @@ import de.cosmocode.palava.bridge.Content;
  * <p>
  *   {@code mimeType://(contentLength)?content}
  * </p>
+ * 
+ * <p>
+ *   Responses to multiplexed calls carry their request id:
+ *   {@code mimeType://requestId/(contentLength)?content}
+ * </p>
+ * 
+ * <p>
+ *   The {@link LegacyHandler} {@link #encode(Channel, Content, int) encodes} responses
+ *   on the thread which produced them, before they are queued for writing, so
+ *   compression never holds up the responses of other calls.
+ * </p>
+ * 
+ * <p>
+ *   {@link StreamingJsonContent}s are sent as a single buffer, the prefix is
+ *   written into the space they reserved in front of their content.
+ * </p>
+ * 
+ * <p>
+ *   Channels which {@link #setCompressing(Channel) enabled compression} get contents
+ *   above the configured threshold deflated into the zlib format, marked in the
+ *   mime type part: {@code mimeType;deflate://(compressedLength)?compressedContent}.
+ *   {@link Deflater}s are pooled and reset instead of being created per response.
+ * </p>
  *
  * @since 1.0
  * @author Willi Schoenborn
@@ -46,42 +81,246 @@ import de.cosmocode.palava.bridge.Content;
 @SuppressWarnings("deprecation")
 final class LegacyContentEncoder extends OneToOneEncoder {
 
-    private static final Logger LOG = LoggerFactory.getLogger(LegacyContentEncoder.class);
+    /**
+     * Applications use a handful of mime types, this only guards against unbounded growth.
+     */
+    private static final int MAX_PREFIXES = 64;
+
+    private static final byte SLASH = '/';
+    private static final byte LEFT_PARENTHESIS = '(';
+    private static final byte RIGHT_PARENTHESIS = ')';
+    private static final byte QUESTION_MARK = '?';
+    
+    private static final String DEFLATE = ";deflate";
+    
+    private final ConcurrentMap<String, Prefix> prefixes = Maps.newConcurrentMap();
     
-    private static final byte[] COLON_SLASHES = "://(".getBytes(Charsets.UTF_8);
-    private static final byte[] QUESTION_MARK = ")?".getBytes(Charsets.UTF_8);
+    /**
+     * Idle deflaters. A pool instead of a thread local, virtual threads never run twice.
+     */
+    private final BlockingQueue<Deflater> deflaters = 
+        new ArrayBlockingQueue<Deflater>(2 * Runtime.getRuntime().availableProcessors());
+    
+    private int compressionThreshold = 16 * 1024;
+    
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    
+    /**
+     * Sets the content length in bytes above which responses of compressing channels are deflated.
+     */
+    @Inject(optional = true)
+    void setCompressionThreshold(@Named(LegacyNettyConfig.COMPRESSION_THRESHOLD) int compressionThreshold) {
+        Preconditions.checkArgument(compressionThreshold >= 0, "CompressionThreshold must not be negative");
+        this.compressionThreshold = compressionThreshold;
+    }
+    
+    @Inject(optional = true)
+    void setCompressionLevel(@Named(LegacyNettyConfig.COMPRESSION_LEVEL) int compressionLevel) {
+        Preconditions.checkArgument(compressionLevel >= Deflater.DEFAULT_COMPRESSION && 
+            compressionLevel <= Deflater.BEST_COMPRESSION, "CompressionLevel must be between -1 and 9");
+        this.compressionLevel = compressionLevel;
+    }
+    
+    /**
+     * Enables compression of large responses for the given channel.
+     *
+     * @since 1.4
+     * @param channel the channel
+     */
+    void setCompressing(Channel channel) {
+        final ChannelHandlerContext context = channel.getPipeline().getContext(this);
+        if (context != null) {
+            context.setAttachment(Boolean.TRUE);
+        }
+    }
+    
+    /**
+     * Encodes the given content on the calling thread, compressed if the given channel
+     * {@link #setCompressing(Channel) enabled compression}.
+     *
+     * @since 1.4
+     * @param channel the channel the response will be written to
+     * @param content the content
+     * @param requestId the request id of the call or -1 if the call has not been multiplexed
+     * @return the encoded response
+     * @throws Exception if reading the content failed
+     */
+    public ChannelBuffer encode(Channel channel, Content content, int requestId) throws Exception {
+        final ChannelHandlerContext context = channel.getPipeline().getContext(this);
+        final boolean compressing = context != null && Boolean.TRUE.equals(context.getAttachment());
+        return encode(content, requestId, compressing);
+    }
     
     @Override
     protected Object encode(ChannelHandlerContext context, Channel channel, Object message) throws Exception {
         if (message instanceof Content) {
-            
-            if (!channel.isWritable()) {
-                LOG.warn("Channel {} is not writable, this might be causing OutOfMemoryErrors", channel);
-            }
-            
-            final Content content = Content.class.cast(message);
-            final byte[] bytes = content.getBytes();
-            
-            final byte[] mimeType = content.getMimeType().getName().getBytes(Charsets.UTF_8);
-            final byte[] length = Integer.toString(bytes.length).getBytes(Charsets.UTF_8);
-            
-            // avoid an extra string builder
-            final ChannelBuffer buffer = ChannelBuffers.buffer(
-                mimeType.length + 
-                COLON_SLASHES.length + 
-                length.length + 
-                QUESTION_MARK.length
-            );
-            
-            buffer.writeBytes(mimeType);
-            buffer.writeBytes(COLON_SLASHES);
-            buffer.writeBytes(length);
-            buffer.writeBytes(QUESTION_MARK);
-            
-            return ChannelBuffers.wrappedBuffer(buffer, ChannelBuffers.wrappedBuffer(bytes));
+            return encode(Content.class.cast(message), -1, Boolean.TRUE.equals(context.getAttachment()));
         } else {
             return message;
         }
     }
+    
+    private ChannelBuffer encode(Content content, int requestId, boolean compressing) throws Exception {
+        ChannelBuffer body;
+        if (content instanceof StreamingJsonContent) {
+            body = StreamingJsonContent.class.cast(content).getBuffer();
+        } else {
+            body = ChannelBuffers.wrappedBuffer(content.getBytes());
+        }
+        
+        final Prefix prefix = prefixOf(content.getMimeType().getName());
+        final byte[] plain;
+        final byte[] multiplexed;
+        final ChannelBuffer compressed = compressing && body.readableBytes() > compressionThreshold ? 
+            deflate(body) : null;
+        if (compressed == null) {
+            plain = prefix.plain;
+            multiplexed = prefix.multiplexed;
+        } else {
+            body = compressed;
+            plain = prefix.deflatedPlain;
+            multiplexed = prefix.deflatedMultiplexed;
+        }
+        
+        final int length = body.readableBytes();
+        
+        final int size;
+        if (requestId < 0) {
+            size = plain.length + digits(length) + 2;
+        } else {
+            size = multiplexed.length + digits(requestId) + 2 + digits(length) + 2;
+        }
+        
+        final boolean reserved = body.readerIndex() >= size;
+        final ChannelBuffer buffer;
+        if (reserved) {
+            // streamed contents reserve space for the prefix in front of them
+            buffer = body.slice(body.readerIndex() - size, size);
+            buffer.clear();
+        } else {
+            buffer = ChannelBuffers.buffer(size);
+        }
+        
+        if (requestId < 0) {
+            buffer.writeBytes(plain);
+        } else {
+            buffer.writeBytes(multiplexed);
+            writeDigits(buffer, requestId);
+            buffer.writeByte(SLASH);
+            buffer.writeByte(LEFT_PARENTHESIS);
+        }
+        writeDigits(buffer, length);
+        buffer.writeByte(RIGHT_PARENTHESIS);
+        buffer.writeByte(QUESTION_MARK);
+        
+        if (reserved) {
+            body.readerIndex(body.readerIndex() - size);
+            return body;
+        } else {
+            return ChannelBuffers.wrappedBuffer(buffer, body);
+        }
+    }
+    
+    /**
+     * Deflates the readable bytes of the given buffer, behind space reserved for the prefix.
+     *
+     * @return the compressed content or null if compressing did not make it smaller
+     */
+    private ChannelBuffer deflate(ChannelBuffer body) throws IOException {
+        final int length = body.readableBytes();
+        final ChannelBuffer output = ChannelBuffers.dynamicBuffer(StreamingJsonContent.RESERVED + length / 4);
+        output.writerIndex(StreamingJsonContent.RESERVED);
+        output.readerIndex(StreamingJsonContent.RESERVED);
+        final Deflater deflater = acquire();
+        try {
+            final OutputStream stream = new DeflaterOutputStream(new ChannelBufferOutputStream(output), deflater);
+            body.getBytes(body.readerIndex(), stream, length);
+            // finishes the stream, the deflater itself stays usable
+            stream.close();
+        } finally {
+            release(deflater);
+        }
+        return output.readableBytes() < length ? output : null;
+    }
+    
+    private Deflater acquire() {
+        final Deflater deflater = deflaters.poll();
+        return deflater == null ? new Deflater(compressionLevel) : deflater;
+    }
+    
+    private void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            // releases the native memory right away instead of waiting for finalization
+            deflater.end();
+        }
+    }
+    
+    private Prefix prefixOf(String mimeType) {
+        final Prefix cached = prefixes.get(mimeType);
+        if (cached != null) {
+            return cached;
+        }
+        final Prefix prefix = new Prefix(mimeType);
+        if (prefixes.size() < MAX_PREFIXES) {
+            prefixes.putIfAbsent(mimeType, prefix);
+        }
+        return prefix;
+    }
+    
+    private static int digits(int value) {
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+    
+    /**
+     * Writes the decimal representation of the given non negative value, without
+     * creating a string.
+     */
+    private static void writeDigits(ChannelBuffer buffer, int value) {
+        final int start = buffer.writerIndex();
+        int index = start + digits(value);
+        buffer.writerIndex(index);
+        int rest = value;
+        do {
+            buffer.setByte(--index, '0' + rest % 10);
+            rest /= 10;
+        } while (index > start);
+    }
+    
+    /**
+     * The pre-encoded prefixes of a single mime type.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    @Immutable
+    private static final class Prefix {
+        
+        /**
+         * {@code mimeType://(}.
+         */
+        private final byte[] plain;
+        
+        /**
+         * {@code mimeType://}, followed by the request id.
+         */
+        private final byte[] multiplexed;
+        
+        private final byte[] deflatedPlain;
+        
+        private final byte[] deflatedMultiplexed;
+        
+        public Prefix(String mimeType) {
+            this.plain = (mimeType + "://(").getBytes(Charsets.UTF_8);
+            this.multiplexed = (mimeType + "://").getBytes(Charsets.UTF_8);
+            this.deflatedPlain = (mimeType + DEFLATE + "://(").getBytes(Charsets.UTF_8);
+            this.deflatedMultiplexed = (mimeType + DEFLATE + "://").getBytes(Charsets.UTF_8);
+        }
+        
+    }
 
 }
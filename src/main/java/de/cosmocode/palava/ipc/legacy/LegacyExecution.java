@@ -0,0 +1,272 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.DefaultObjectSizeEstimator;
+import org.jboss.netty.util.ObjectSizeEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.bridge.call.CallType;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Owns the optional execution stage of the legacy pipeline which moves call
+ * processing off the netty I/O threads.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+final class LegacyExecution implements Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LegacyExecution.class);
+
+    private ExecutionMode mode = ExecutionMode.IO;
+
+    private int threads = 16;
+
+    private boolean pipelining;
+    
+    private ExecutionHandler handler;
+
+    @Inject(optional = true)
+    void setMode(@Named(LegacyNettyConfig.EXECUTION_MODE) ExecutionMode mode) {
+        this.mode = Preconditions.checkNotNull(mode, "Mode");
+    }
+
+    @Inject(optional = true)
+    void setThreads(@Named(LegacyNettyConfig.EXECUTION_THREADS) int threads) {
+        Preconditions.checkArgument(threads > 0, "Threads must be positive");
+        this.threads = threads;
+    }
+
+    @Inject(optional = true)
+    void setPipelining(@Named(LegacyNettyConfig.PIPELINING) boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        LOG.info("Executing legacy calls in {} mode, pipelining is set to {}", mode, pipelining);
+        switch (mode) {
+            case IO: {
+                handler = null;
+                break;
+            }
+            case POOLED: {
+                handler = newPooledHandler();
+                break;
+            }
+            case VIRTUAL: {
+                final ThreadFactory factory = ThreadPerCallExecutor.newVirtualThreadFactory();
+                if (factory == null) {
+                    // never fall back to an unbounded number of platform threads
+                    LOG.warn("Virtual threads are not supported by this JVM, falling back to {} pooled threads",
+                        threads);
+                    mode = ExecutionMode.POOLED;
+                    handler = newPooledHandler();
+                } else {
+                    final ThreadPerCallExecutor executor = new ThreadPerCallExecutor(factory, !pipelining);
+                    handler = new DetachingExecutionHandler(executor, pipelining);
+                }
+                break;
+            }
+            default: {
+                throw new AssertionError("Default case matched mode " + mode);
+            }
+        }
+    }
+
+    private ExecutionHandler newPooledHandler() {
+        // no memory limits, the BackpressureHandler alone decides whether a channel is readable
+        if (pipelining) {
+            return new DetachingExecutionHandler(new MemoryAwareThreadPoolExecutor(
+                threads, 0, 0, 60, TimeUnit.SECONDS,
+                HeaderSizeEstimator.INSTANCE, new WorkerThreadFactory()
+            ), true);
+        } else {
+            return new DetachingExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(
+                threads, 0, 0, 60, TimeUnit.SECONDS,
+                HeaderSizeEstimator.INSTANCE, new WorkerThreadFactory()
+            ), false);
+        }
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Provides the execution handler which has to be placed right behind the
+     * {@link LegacyFrameDecoder}.
+     *
+     * @since 1.4
+     * @return the execution handler or null if calls are executed on the I/O threads
+     */
+    public ExecutionHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (handler != null) {
+            handler.releaseExternalResources();
+        }
+    }
+
+    /**
+     * An {@link ExecutionHandler} which detaches every {@link LegacyHeader} from
+     * the decoder's buffer before it leaves the I/O thread.
+     * 
+     * <p>
+     *   Channel state events are always processed on the I/O thread. A closed channel
+     *   therefore cancels its running calls immediately, instead of waiting in the
+     *   channel's queue behind them, and calls still queued are skipped.
+     * </p>
+     * 
+     * <p>
+     *   Every queued call is {@link LegacyHandler#queued(Channel) counted} as in flight
+     *   before it leaves the I/O thread, so the connection is not destroyed while calls
+     *   are still waiting in the queue.
+     * </p>
+     * 
+     * <p>
+     *   When pipelining, the executor does not preserve any order. {@link CallType#OPEN Open}
+     *   and {@link CallType#CLOSE close} calls are therefore processed on the I/O thread,
+     *   so they are never reordered with the calls surrounding them. They are no barriers
+     *   though: an open call does not wait for calls which are still running and a close
+     *   call only waits for their responses, which are written in order anyway.
+     * </p>
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    @Sharable
+    @SuppressWarnings("deprecation")
+    private static final class DetachingExecutionHandler extends ExecutionHandler {
+
+        private final boolean pipelining;
+        
+        public DetachingExecutionHandler(java.util.concurrent.Executor executor, boolean pipelining) {
+            super(executor);
+            this.pipelining = pipelining;
+        }
+
+        @Override
+        public void handleUpstream(ChannelHandlerContext context, ChannelEvent event) throws Exception {
+            if (event instanceof MessageEvent && MessageEvent.class.cast(event).getMessage() instanceof LegacyHeader) {
+                final MessageEvent messageEvent = MessageEvent.class.cast(event);
+                final LegacyHeader header = LegacyHeader.class.cast(messageEvent.getMessage());
+                if (pipelining && isConnectionCall(header)) {
+                    context.sendUpstream(event);
+                } else {
+                    if (!isConnectionCall(header)) {
+                        context.getPipeline().get(LegacyHandler.class).queued(messageEvent.getChannel());
+                    }
+                    super.handleUpstream(context, new UpstreamMessageEvent(
+                        messageEvent.getChannel(), header.detach(), messageEvent.getRemoteAddress()
+                    ));
+                }
+            } else if (pipelining || event instanceof ChannelStateEvent) {
+                context.sendUpstream(event);
+            } else {
+                super.handleUpstream(context, event);
+            }
+        }
+        
+        private boolean isConnectionCall(LegacyHeader header) {
+            return header.getCallType() == CallType.OPEN || header.getCallType() == CallType.CLOSE;
+        }
+
+    }
+
+    /**
+     * Estimates queued headers by the size of their content in memory, spilled contents
+     * only count their overhead. The executor has no memory limits, but still estimates
+     * every task, which would be expensive with the default estimator.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private enum HeaderSizeEstimator implements ObjectSizeEstimator {
+
+        INSTANCE;
+
+        private static final int OVERHEAD = 64;
+
+        private final ObjectSizeEstimator fallback = new DefaultObjectSizeEstimator();
+
+        @Override
+        public int estimateSize(Object o) {
+            if (o instanceof ChannelEventRunnable) {
+                final ChannelEvent event = ChannelEventRunnable.class.cast(o).getEvent();
+                if (event instanceof MessageEvent) {
+                    final Object message = MessageEvent.class.cast(event).getMessage();
+                    if (message instanceof LegacyHeader) {
+                        return OVERHEAD + LegacyHeader.class.cast(message).getHeapSize();
+                    }
+                }
+            }
+            return fallback.estimateSize(o);
+        }
+
+    }
+
+    /**
+     * Creates named daemon worker threads.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "legacy-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
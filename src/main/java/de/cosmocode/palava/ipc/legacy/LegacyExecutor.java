@@ -28,10 +28,7 @@ import com.google.inject.Inject;
 import de.cosmocode.palava.bridge.Content;
 import de.cosmocode.palava.bridge.call.Call;
 import de.cosmocode.palava.bridge.command.Job;
-import de.cosmocode.palava.bridge.content.ErrorContent;
-import de.cosmocode.palava.bridge.content.JsonContent;
 import de.cosmocode.palava.ipc.IpcCommand;
-import de.cosmocode.palava.ipc.IpcCommandExecutionException;
 import de.cosmocode.palava.ipc.IpcCommandExecutor;
 
 /**
@@ -52,24 +49,34 @@ final class LegacyExecutor implements Executor {
     
     private final CommandLoader loader;
     
+    private final LegacyWarmup warmup;
+    
+    private final ClientErrors errors;
+    
     @Inject
     public LegacyExecutor(IpcCommandExecutor commandExecutor, JobExecutor jobExecutor, 
-        CommandLoader loader) {
+        CommandLoader loader, LegacyWarmup warmup, ClientErrors errors) {
         this.commandExecutor = Preconditions.checkNotNull(commandExecutor, "CommandExecutor");
         this.jobExecutor = Preconditions.checkNotNull(jobExecutor, "JobExecutor");
         this.loader = Preconditions.checkNotNull(loader, "Loader");
+        this.warmup = Preconditions.checkNotNull(warmup, "Warmup");
+        this.errors = Preconditions.checkNotNull(errors, "Errors");
     }
     
     @Override
-    public Content execute(Call call) {
+    public Content execute(Call call, Class<?> type) {
         try {
-            final String name = call.getHeader().getAliasedName();
-            final Object raw = loader.load(name);
+            final DispatchTable.Dispatch dispatch = warmup.getTable().get(type);
+            if (dispatch != null) {
+                return execute(dispatch, call);
+            }
+            
+            final Object raw = loader.load(call.getHeader().getAliasedName());
             
             if (raw instanceof IpcCommand) {
                 LOG.trace("Executing ipc command {}", raw);
                 final Map<String, Object> result = commandExecutor.execute(raw.getClass().getName(), call);
-                return new JsonContent(result);
+                return StreamingJsonContent.of(result);
             } else if (raw instanceof Job) {
                 final Job job = Job.class.cast(raw);
                 LOG.trace("Processing job {}", job);
@@ -77,12 +84,29 @@ final class LegacyExecutor implements Executor {
             } else {
                 throw new IllegalArgumentException("Unknown class " + raw);
             }
-        } catch (IpcCommandExecutionException e) {
-            return ErrorContent.create(e);
         /* CHECKSTYLE:OFF */
         } catch (Exception e) {
         /* CHECKSTYLE:ON */
-            return ErrorContent.create(e);
+            return errors.create(e);
+        }
+    }
+    
+    private Content execute(DispatchTable.Dispatch dispatch, Call call) throws Exception {
+        switch (dispatch.getKind()) {
+            case COMMAND: {
+                LOG.trace("Executing ipc command {}", dispatch);
+                // the command executor creates its own instance, no need to create one here
+                final Map<String, Object> result = commandExecutor.execute(dispatch.getClassName(), call);
+                return StreamingJsonContent.of(result);
+            }
+            case JOB: {
+                final Job job = Job.class.cast(dispatch.getProvider().get());
+                LOG.trace("Processing job {}", job);
+                return jobExecutor.execute(job, call);
+            }
+            default: {
+                throw new AssertionError("Unknown kind " + dispatch.getKind());
+            }
         }
     }
 
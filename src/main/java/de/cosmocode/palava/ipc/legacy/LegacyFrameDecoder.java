@@ -16,129 +16,353 @@
 
 package de.cosmocode.palava.ipc.legacy;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 
 import javax.annotation.concurrent.NotThreadSafe;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
+import de.cosmocode.palava.bridge.Content;
 import de.cosmocode.palava.bridge.Header;
 import de.cosmocode.palava.bridge.call.CallType;
+import de.cosmocode.palava.bridge.content.ErrorContent;
 
 /**
- * Legacy {@link ReplayingDecoder} to support the legacy php protocol which looks like:<br />
+ * Legacy {@link FrameDecoder} to support the legacy php protocol which looks like:<br />
  * {@code <type>://<name>/<sessionId>/(<length>)?<content>}.
+ * 
+ * <p>
+ *   Besides the {@link CallType}s the type may be {@code batch}, which marks a json
+ *   call whose content lists multiple commands, see {@link LegacyHeader#isBatch()}.
+ * </p>
+ * 
+ * <p>
+ *   Once the channel has been switched to {@link #setMultiplexed(boolean) multiplexed}
+ *   mode, every frame carries an additional request id:<br />
+ *   {@code <type>://<name>/<sessionId>/<requestId>/(<length>)?<content>}.
+ * </p>
+ * 
+ * <p>
+ *   The decoder is a single-pass state machine. The current {@link Part} and the
+ *   number of bytes of the current token which have already been scanned survive
+ *   between chunks, so every byte is inspected exactly once, even if a token
+ *   is split across multiple reads.
+ * </p>
  *
  * @since 1.0
  * @author Willi Schoenborn
  */
 @NotThreadSafe
 @SuppressWarnings("deprecation")
-final class LegacyFrameDecoder extends ReplayingDecoder<Part> {
+final class LegacyFrameDecoder extends FrameDecoder {
 
     private static final Logger LOG = LoggerFactory.getLogger(LegacyFrameDecoder.class);
     
+    private static final int DEFAULT_MAX_TOKEN_LENGTH = 4096;
+    
+    private final NameTable names;
+    
+    private final LegacyStatistics statistics;
+    
+    private final BackpressureHandler backpressure;
+    
+    private int maxTokenLength = DEFAULT_MAX_TOKEN_LENGTH;
+    
+    private int maxContentLength = Integer.MAX_VALUE;
+    
+    /**
+     * Content length above which binary contents are spilled to disk.
+     */
+    private int spillThreshold = Integer.MAX_VALUE;
+    
+    private boolean rejected;
+    
+    /**
+     * Switched by the handler when the client negotiated multiplexing.
+     */
+    private volatile boolean multiplexed;
+    
+    private Part part = Part.TYPE;
+    
+    /**
+     * Number of bytes, relative to the reader index, which have already been
+     * scanned for the delimiter of the current token.
+     */
+    private int scanned;
+    
     private CallType type;
     
+    private boolean batch;
+    
     private String name;
     
     private String sessionId;
     
+    private int requestId = -1;
+    
     private int length;
     
-    private ByteBuffer content;
+    private ChannelBuffer content;
+    
+    private SpillFile spillFile;
+    
+    /**
+     * The raw bytes of the last session id, used to reuse the decoded value.
+     */
+    private byte[] sessionIdBytes;
+    
+    /**
+     * The sequence number of the next frame on this channel.
+     */
+    private int sequence;
     
-    public LegacyFrameDecoder() {
-        super(Part.TYPE);
+    /**
+     * The number of bytes left in the cumulation after the last decode pass.
+     */
+    private int buffered;
+    
+    @Inject
+    public LegacyFrameDecoder(NameTable names, LegacyStatistics statistics, BackpressureHandler backpressure) {
+        this.names = Preconditions.checkNotNull(names, "Names");
+        this.statistics = Preconditions.checkNotNull(statistics, "Statistics");
+        this.backpressure = Preconditions.checkNotNull(backpressure, "Backpressure");
+    }
+    
+    @Inject(optional = true)
+    void setMaxTokenLength(@Named(LegacyNettyConfig.MAX_TOKEN_LENGTH) int maxTokenLength) {
+        Preconditions.checkArgument(maxTokenLength > 0, "MaxTokenLength must be positive");
+        this.maxTokenLength = maxTokenLength;
+    }
+    
+    @Inject(optional = true)
+    void setMaxContentLength(@Named(LegacyNettyConfig.MAX_CONTENT_LENGTH) int maxContentLength) {
+        Preconditions.checkArgument(maxContentLength >= 0, "MaxContentLength must not be negative");
+        this.maxContentLength = maxContentLength;
+    }
+    
+    @Inject(optional = true)
+    void setSpillThreshold(@Named(LegacyNettyConfig.SPILL_THRESHOLD) int spillThreshold) {
+        Preconditions.checkArgument(spillThreshold >= 0, "SpillThreshold must not be negative");
+        this.spillThreshold = spillThreshold;
+    }
+    
+    /**
+     * Enables or disables request ids on all frames following the current one.
+     * 
+     * @since 1.4
+     * @param multiplexed true if all following frames carry a request id
+     */
+    void setMultiplexed(boolean multiplexed) {
+        this.multiplexed = multiplexed;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        super.messageReceived(context, event);
+        // incomplete frames held in memory count against the backpressure watermarks,
+        // but never keep the channel from reading the rest of them
+        backpressure.setBuffered(context.getChannel(), buffered);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext context, Channel channel, ChannelBuffer buffer) throws Exception {
+        final Object frame = decodeFrame(context, channel, buffer);
+        buffered = buffer.readableBytes();
+        return frame;
     }
 
     // Reducing cyclomatic complexity would dramatically reduce readability
     // Fall-throughs are the fastest way here
     /* CHECKSTYLE:OFF */
-    @Override
-    protected Header decode(ChannelHandlerContext context, Channel channel, 
-        ChannelBuffer buffer, Part part) throws Exception {
+    private Object decodeFrame(ChannelHandlerContext context, Channel channel, ChannelBuffer buffer) 
+        throws Exception {
+        
+        if (rejected) {
+            // the channel is about to be closed, nothing left to read
+            buffer.skipBytes(buffer.readableBytes());
+            return null;
+        }
         
         switch (part) {
             case TYPE: {
-                type = readType(buffer);
+                final int index = indexOf(buffer, ':');
+                if (tokenTooLong(buffer, index)) {
+                    return reject(channel, buffer, "type exceeds " + maxTokenLength + " bytes");
+                } else if (index == -1) {
+                    return null;
+                }
+                type = readType(buffer, index);
                 checkpoint(Part.COLON);
                 // intended fall-through
             }
             case COLON: {
+                if (!buffer.readable()) {
+                    return null;
+                }
                 final byte c = buffer.readByte();
                 checkState(c == ':', "Expected : but was %s", c);
                 checkpoint(Part.FIRST_SLASH);
                 // intended fall-through
             }
             case FIRST_SLASH: {
+                if (!buffer.readable()) {
+                    return null;
+                }
                 final byte c = buffer.readByte();
                 checkState(c == '/', "Expected first / but was %s", c);
                 checkpoint(Part.SECOND_SLASH);
                 // intended fall-through
             }
             case SECOND_SLASH: {
+                if (!buffer.readable()) {
+                    return null;
+                }
                 final byte c = buffer.readByte();
                 checkState(c == '/', "Expected second / but was %s", c);
                 checkpoint(Part.NAME);
                 // intended fall-through
             }
             case NAME: {
-                name = readName(buffer);
+                final int index = indexOf(buffer, '/');
+                if (tokenTooLong(buffer, index)) {
+                    return reject(channel, buffer, "name exceeds " + maxTokenLength + " bytes");
+                } else if (index == -1) {
+                    return null;
+                }
+                name = readName(buffer, index);
                 checkpoint(Part.THIRD_SLASH);
                 // intended fall-through
             }
             case THIRD_SLASH: {
+                if (!buffer.readable()) {
+                    return null;
+                }
                 final byte c = buffer.readByte();
                 checkState(c == '/', "Expected third / but was %s", c);
                 checkpoint(Part.SESSION_ID);
                 // intended fall-through
             }
             case SESSION_ID: {
-                sessionId = readSessionId(buffer);
+                final int index = indexOf(buffer, '/');
+                if (tokenTooLong(buffer, index)) {
+                    return reject(channel, buffer, "session id exceeds " + maxTokenLength + " bytes");
+                } else if (index == -1) {
+                    return null;
+                }
+                sessionId = readSessionId(buffer, index);
                 checkpoint(Part.FOURTH_SLASH);
                 // intended fall-through
             }
             case FOURTH_SLASH: {
+                if (!buffer.readable()) {
+                    return null;
+                }
                 final byte c = buffer.readByte();
                 checkState(c == '/', "Expected fourth / but was %s", c);
-                checkpoint(Part.LEFT_PARENTHESIS);
+                if (multiplexed) {
+                    checkpoint(Part.REQUEST_ID);
+                } else {
+                    requestId = -1;
+                    checkpoint(Part.LEFT_PARENTHESIS);
+                }
+                // intended fall-through
+            }
+            case REQUEST_ID: {
+                if (part == Part.REQUEST_ID) {
+                    final int index = indexOf(buffer, '/');
+                    if (tokenTooLong(buffer, index)) {
+                        return reject(channel, buffer, "request id exceeds " + maxTokenLength + " bytes");
+                    } else if (index == -1) {
+                        return null;
+                    }
+                    requestId = readNumber(buffer, index, "request id");
+                    checkpoint(Part.FIFTH_SLASH);
+                }
+                // intended fall-through
+            }
+            case FIFTH_SLASH: {
+                if (part == Part.FIFTH_SLASH) {
+                    if (!buffer.readable()) {
+                        return null;
+                    }
+                    final byte c = buffer.readByte();
+                    checkState(c == '/', "Expected fifth / but was %s", c);
+                    checkpoint(Part.LEFT_PARENTHESIS);
+                }
                 // intended fall-through
             }
             case LEFT_PARENTHESIS: {
+                if (!buffer.readable()) {
+                    return null;
+                }
                 final byte c = buffer.readByte();
                 checkState(c == '(', "Expected ( but was %s", c);
                 checkpoint(Part.CONTENT_LENGTH);
                 // intended fall-through
             }
             case CONTENT_LENGTH: {
-                length = readLength(buffer);
+                final int index = indexOf(buffer, ')');
+                if (tokenTooLong(buffer, index)) {
+                    return reject(channel, buffer, "content length exceeds " + maxTokenLength + " bytes");
+                } else if (index == -1) {
+                    return null;
+                }
+                length = readNumber(buffer, index, "content length");
+                if (length > maxContentLength) {
+                    return reject(channel, buffer, "content length " + length + " exceeds " + maxContentLength);
+                }
                 checkpoint(Part.RIGHT_PARENTHESIS);
                 // intended fall-through
             }
             case RIGHT_PARENTHESIS: {
+                if (!buffer.readable()) {
+                    return null;
+                }
                 final byte c = buffer.readByte();
                 checkState(c == ')', "Expected ) but was %s", c);
                 checkpoint(Part.QUESTION_MARK);
                 // intended fall-through
             }
             case QUESTION_MARK: {
+                if (!buffer.readable()) {
+                    return null;
+                }
                 final byte c = buffer.readByte();
                 checkState(c == '?', "Expected ? but was %s", c);
                 checkpoint(Part.CONTENT);
                 // intended fall-through
             }
             case CONTENT: {
+                if (type == CallType.BINARY && length > spillThreshold) {
+                    return spill(buffer);
+                }
+                if (buffer.readableBytes() < length) {
+                    return null;
+                }
                 content = readContent(buffer);
                 checkpoint(Part.TYPE);
-                return InternalHeader.copyOf(this);
+                final LegacyHeader header = InternalHeader.copyOf(this);
+                sequence++;
+                return header;
             }
             default: {
                 throw new AssertionError("Default case matched part " + part);
@@ -148,8 +372,115 @@ final class LegacyFrameDecoder extends ReplayingDecoder<Part> {
     }
     /* CHECKSTYLE:ON */
     
-    private CallType readType(ChannelBuffer buffer) {
-        final String value = readUntil(buffer, ':');
+    private boolean tokenTooLong(ChannelBuffer buffer, int index) {
+        final int size = index == -1 ? scanned : index - buffer.readerIndex();
+        return size > maxTokenLength;
+    }
+    
+    /**
+     * Rejects the current frame by replying with an error, closing the channel
+     * and discarding everything which is received until then.
+     */
+    private Object reject(Channel channel, ChannelBuffer buffer, String message) {
+        LOG.warn("Rejecting frame from {}: {}", channel.getRemoteAddress(), message);
+        statistics.frameRejected();
+        rejected = true;
+        buffer.skipBytes(buffer.readableBytes());
+        final Content content = ErrorContent.create(new TooLongFrameException(message));
+        Channels.write(channel, content).addListener(ChannelFutureListener.CLOSE);
+        return null;
+    }
+    
+    private void checkpoint(Part next) {
+        part = next;
+        scanned = 0;
+    }
+    
+    /**
+     * Searches the readable bytes of the given buffer for the specified delimiter,
+     * starting where the last unsuccessful search stopped.
+     * 
+     * @param buffer the buffer to search
+     * @param c the delimiter
+     * @return the absolute index of the delimiter or -1 if it is not yet available
+     */
+    private int indexOf(ChannelBuffer buffer, char c) {
+        final int index = buffer.indexOf(buffer.readerIndex() + scanned, buffer.writerIndex(), (byte) c);
+        if (index == -1) {
+            scanned = buffer.readableBytes();
+        }
+        return index;
+    }
+    
+    // Fall-throughs make the byte by byte comparison of the known types pretty readable
+    /* CHECKSTYLE:OFF */
+    private CallType readType(ChannelBuffer buffer, int index) {
+        final int start = buffer.readerIndex();
+        final int size = index - start;
+        final CallType value;
+        batch = false;
+        
+        // the lower case bit is set to match case-insensitive without decoding
+        switch (size == 0 ? 0 : buffer.getByte(start) | 0x20) {
+            case 'o': {
+                value = matches(buffer, start, size, "open") ? CallType.OPEN : null;
+                break;
+            }
+            case 'c': {
+                value = matches(buffer, start, size, "close") ? CallType.CLOSE : null;
+                break;
+            }
+            case 'd': {
+                value = matches(buffer, start, size, "data") ? CallType.DATA : null;
+                break;
+            }
+            case 'j': {
+                value = matches(buffer, start, size, "json") ? CallType.JSON : null;
+                break;
+            }
+            case 't': {
+                value = matches(buffer, start, size, "text") ? CallType.TEXT : null;
+                break;
+            }
+            case 'b': {
+                if (matches(buffer, start, size, "batch")) {
+                    // batches are json calls as far as the bridge api is concerned
+                    batch = true;
+                    value = CallType.JSON;
+                } else {
+                    value = matches(buffer, start, size, "binary") ? CallType.BINARY : null;
+                }
+                break;
+            }
+            default: {
+                value = null;
+            }
+        }
+        /* CHECKSTYLE:ON */
+        
+        if (value == null) {
+            return readUnknownType(buffer, index);
+        } else {
+            buffer.readerIndex(index);
+            LOG.trace("Read type '{}'", value);
+            return value;
+        }
+    }
+    
+    private boolean matches(ChannelBuffer buffer, int start, int size, String expected) {
+        if (size != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if ((buffer.getByte(start + i) | 0x20) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private CallType readUnknownType(ChannelBuffer buffer, int index) {
+        final String value = readUntil(buffer, index);
         LOG.trace("Read type '{}'", value);
         try {
             return CallType.valueOf(value.toUpperCase());
@@ -162,48 +493,101 @@ final class LegacyFrameDecoder extends ReplayingDecoder<Part> {
         }
     }
     
-    private String readName(ChannelBuffer buffer) {
-        final String value = readUntil(buffer, '/');
+    private String readName(ChannelBuffer buffer, int index) {
+        final String value = names.get(buffer, buffer.readerIndex(), index - buffer.readerIndex());
+        buffer.readerIndex(index);
         LOG.trace("Read name '{}'", value);
         return value;
     }
     
-    private String readSessionId(ChannelBuffer buffer) {
-        final String value = readUntil(buffer, '/');
-        LOG.trace("Read sessionId '{}'", value);
-        return value;
+    private String readSessionId(ChannelBuffer buffer, int index) {
+        final int start = buffer.readerIndex();
+        final int size = index - start;
+        // clients send the same session id on every frame of a connection
+        if (!sameSessionId(buffer, start, size)) {
+            sessionIdBytes = new byte[size];
+            buffer.getBytes(start, sessionIdBytes);
+            sessionId = new String(sessionIdBytes, Charsets.UTF_8);
+        }
+        buffer.readerIndex(index);
+        LOG.trace("Read sessionId '{}'", sessionId);
+        return sessionId;
     }
     
-    private int readLength(ChannelBuffer buffer) {
-        final String value = readUntil(buffer, ')');
-        LOG.trace("Read length {}", value);
-        return Integer.parseInt(value);
+    private boolean sameSessionId(ChannelBuffer buffer, int start, int size) {
+        if (sessionIdBytes == null || sessionIdBytes.length != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (sessionIdBytes[i] != buffer.getByte(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private int readNumber(ChannelBuffer buffer, int index, String what) {
+        final int start = buffer.readerIndex();
+        if (start == index) {
+            throw new NumberFormatException("Empty " + what);
+        }
+        int value = 0;
+        for (int i = start; i < index; i++) {
+            final int digit = buffer.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Illegal " + what + " " + 
+                    buffer.toString(start, index - start, Charsets.UTF_8));
+            } else if (value > (Integer.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Too large " + what + " " + 
+                    buffer.toString(start, index - start, Charsets.UTF_8));
+            }
+            value = value * 10 + digit;
+        }
+        buffer.readerIndex(index);
+        LOG.trace("Read {} {}", what, value);
+        return value;
     }
     
-    private ByteBuffer readContent(ChannelBuffer buffer) {
-        final ByteBuffer value = buffer.toByteBuffer(buffer.readerIndex(), length);
-        buffer.skipBytes(length);
+    private ChannelBuffer readContent(ChannelBuffer buffer) {
+        // no copy here, see LegacyHeader for the ownership rules
+        final ChannelBuffer value = ChannelBuffers.unmodifiableBuffer(buffer.readSlice(length));
         LOG.trace("Read content {}", value);
         return value;
     }
     
-    private String readUntil(ChannelBuffer buffer, char c) {
-        int i = buffer.readerIndex();
-        while (true) {
-            if (c == buffer.getByte(i)) {
-                return readAndIncrement(buffer, i);
-            }
-            i++;
+    private LegacyHeader spill(ChannelBuffer buffer) throws IOException {
+        if (spillFile == null) {
+            spillFile = SpillFile.create(length);
+        }
+        spillFile.write(buffer);
+        if (spillFile.isComplete()) {
+            final LegacyHeader header = new SpilledHeader(this, spillFile);
+            spillFile = null;
+            checkpoint(Part.TYPE);
+            sequence++;
+            return header;
+        } else {
+            return null;
         }
     }
     
-    private String readAndIncrement(ChannelBuffer buffer, int currentIndex) {
-        final int size = currentIndex - buffer.readerIndex();
+    private String readUntil(ChannelBuffer buffer, int index) {
+        final int size = index - buffer.readerIndex();
         final String value = buffer.toString(buffer.readerIndex(), size, Charsets.UTF_8);
-        buffer.readerIndex(currentIndex);
+        buffer.readerIndex(index);
         return value;
     }
 
+    @Override
+    public void channelClosed(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        super.channelClosed(context, event);
+        if (spillFile != null) {
+            // the client went away during an upload
+            spillFile.delete();
+            spillFile = null;
+        }
+    }
+
     private void checkState(boolean state, String format, byte c) {
         if (state) {
             return;
@@ -213,12 +597,13 @@ final class LegacyFrameDecoder extends ReplayingDecoder<Part> {
     }
     
     /**
-     * Internal implementation of the {@link Header} interface.
+     * Abstract base implementation of the {@link LegacyHeader} interface holding
+     * all values parsed from the frame header.
      *
-     * @since 1.0 
+     * @since 1.4
      * @author Willi Schoenborn
      */
-    private static final class InternalHeader implements Header {
+    private abstract static class AbstractHeader implements LegacyHeader {
         
         private final CallType type;
         
@@ -226,16 +611,32 @@ final class LegacyFrameDecoder extends ReplayingDecoder<Part> {
         
         private final String sessionId;
         
-        private final int length;
+        private final int requestId;
         
-        private final ByteBuffer content;
+        private final int sequence;
         
-        private InternalHeader(LegacyFrameDecoder decoder) {
+        private final long arrivalTime;
+        
+        private final boolean batch;
+        
+        protected AbstractHeader(LegacyFrameDecoder decoder) {
             this.type = decoder.type;
+            this.batch = decoder.batch;
             this.name = decoder.name;
             this.sessionId = decoder.sessionId;
-            this.length = decoder.length;
-            this.content = decoder.content;
+            this.requestId = decoder.requestId;
+            this.sequence = decoder.sequence;
+            this.arrivalTime = System.nanoTime();
+        }
+        
+        protected AbstractHeader(AbstractHeader template) {
+            this.type = template.type;
+            this.batch = template.batch;
+            this.name = template.name;
+            this.sessionId = template.sessionId;
+            this.requestId = template.requestId;
+            this.sequence = template.sequence;
+            this.arrivalTime = template.arrivalTime;
         }
         
         @Override
@@ -254,26 +655,171 @@ final class LegacyFrameDecoder extends ReplayingDecoder<Part> {
         }
         
         @Override
-        public int getContentLength() {
-            return length;
+        public int getRequestId() {
+            return requestId;
         }
         
         @Override
-        public ByteBuffer getContent() {
-            return content;
+        public int getSequence() {
+            return sequence;
         }
-
+        
+        @Override
+        public long getArrivalTime() {
+            return arrivalTime;
+        }
+        
+        @Override
+        public boolean isBatch() {
+            return batch;
+        }
+        
+        protected abstract Object describeContent();
+        
         @Override
         public String toString() {
-            return String.format("Header [callType=%s, name=%s, sessionId=%s, contentLength=%s, content=%s]",
-                getCallType(), getAliasedName(), getSessionId(), getContentLength(), getContent()
+            return String.format(
+                "Header [callType=%s, batch=%s, name=%s, sessionId=%s, requestId=%s, contentLength=%s, content=%s]",
+                getCallType(), isBatch(), getAliasedName(), getSessionId(), getRequestId(),
+                getContentLength(), describeContent()
             );
         }
         
-        public static Header copyOf(LegacyFrameDecoder decoder) {
+    }
+    
+    /**
+     * Internal implementation of the {@link LegacyHeader} interface.
+     *
+     * @since 1.0 
+     * @author Willi Schoenborn
+     */
+    private static final class InternalHeader extends AbstractHeader {
+        
+        private final ChannelBuffer content;
+        
+        private final boolean detached;
+        
+        private InternalHeader(LegacyFrameDecoder decoder) {
+            super(decoder);
+            this.content = decoder.content;
+            this.detached = false;
+        }
+        
+        private InternalHeader(InternalHeader template, ChannelBuffer content) {
+            super(template);
+            this.content = content;
+            this.detached = true;
+        }
+        
+        @Override
+        public int getContentLength() {
+            return content.readableBytes();
+        }
+        
+        @Override
+        public int getHeapSize() {
+            return content.readableBytes();
+        }
+        
+        @Override
+        public ByteBuffer getContent() {
+            // wraps instead of copying for heap buffers
+            return content.toByteBuffer();
+        }
+        
+        @Override
+        public ChannelBuffer getContentBuffer() {
+            return content.duplicate();
+        }
+        
+        @Override
+        public InputStream openStream() {
+            return new ChannelBufferInputStream(getContentBuffer());
+        }
+        
+        @Override
+        public LegacyHeader detach() {
+            if (detached) {
+                return this;
+            } else {
+                final ChannelBuffer copy = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.copiedBuffer(content));
+                return new InternalHeader(this, copy);
+            }
+        }
+        
+        @Override
+        public void release() {
+            // nothing to do, the garbage collector takes care of the buffer
+        }
+        
+        @Override
+        protected Object describeContent() {
+            return content;
+        }
+        
+        public static LegacyHeader copyOf(LegacyFrameDecoder decoder) {
             return new InternalHeader(decoder);
         }
         
     }
     
+    /**
+     * Implementation of the {@link LegacyHeader} interface whose content has been
+     * spilled to a {@link SpillFile}.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class SpilledHeader extends AbstractHeader {
+        
+        private final SpillFile file;
+        
+        private SpilledHeader(LegacyFrameDecoder decoder, SpillFile file) {
+            super(decoder);
+            this.file = file;
+        }
+        
+        @Override
+        public int getContentLength() {
+            return file.getLength();
+        }
+        
+        @Override
+        public int getHeapSize() {
+            return 0;
+        }
+        
+        @Override
+        public ByteBuffer getContent() {
+            return file.map();
+        }
+        
+        @Override
+        public ChannelBuffer getContentBuffer() {
+            return ChannelBuffers.wrappedBuffer(file.map());
+        }
+        
+        @Override
+        public InputStream openStream() {
+            return file.openStream();
+        }
+        
+        @Override
+        public LegacyHeader detach() {
+            // the file is not shared with the decoder
+            return this;
+        }
+        
+        @Override
+        public void release() {
+            file.delete();
+        }
+        
+        @Override
+        protected Object describeContent() {
+            return file;
+        }
+        
+    }
+    
 }
@@ -17,13 +17,19 @@
 package de.cosmocode.palava.ipc.legacy;
 
 import java.util.Collections;
-import java.util.concurrent.ConcurrentMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.ThreadSafe;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -34,23 +40,23 @@ import org.jboss.netty.channel.SimpleChannelHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
-import com.google.inject.name.Named;
 
 import de.cosmocode.palava.bridge.Content;
 import de.cosmocode.palava.bridge.call.Arguments;
 import de.cosmocode.palava.bridge.call.Call;
 import de.cosmocode.palava.bridge.call.CallType;
+import de.cosmocode.palava.bridge.content.ErrorContent;
 import de.cosmocode.palava.bridge.content.JsonContent;
-import de.cosmocode.palava.bridge.request.HttpRequest;
 import de.cosmocode.palava.bridge.scope.Scopes;
 import de.cosmocode.palava.bridge.session.HttpSession;
 import de.cosmocode.palava.core.Registry.Proxy;
 import de.cosmocode.palava.core.Registry.SilentProxy;
-import de.cosmocode.palava.core.lifecycle.Initializable;
-import de.cosmocode.palava.core.lifecycle.LifecycleException;
 import de.cosmocode.palava.ipc.IpcCallCreateEvent;
 import de.cosmocode.palava.ipc.IpcCallDestroyEvent;
 import de.cosmocode.palava.ipc.IpcCallScope;
@@ -70,16 +76,36 @@ import de.cosmocode.palava.scope.ConcurrentMapScopeContext;
 @Sharable
 @ThreadSafe
 @SuppressWarnings("deprecation")
-final class LegacyHandler extends SimpleChannelHandler implements Initializable {
+final class LegacyHandler extends SimpleChannelHandler {
     
     static final String REQUEST_URI = "REQUEST_URI";
     static final String HTTP_REFERER = "HTTP_REFERER";
     static final String REMOTE_ADDR = "REMOTE_ADDR";
     static final String HTTP_USER_AGENT = "HTTP_USER_AGENT";
+    
+    /**
+     * Open argument which switches the connection to multiplexed mode. Clients have
+     * to wait for the response of the open call before sending request ids.
+     */
+    static final String MULTIPLEX = "MULTIPLEX";
+    
+    /**
+     * Open argument which caps the execution time of every call of the connection
+     * in milliseconds, usually the client's own timeout.
+     */
+    static final String TIMEOUT = "TIMEOUT";
+    
+    /**
+     * Open argument which allows the server to deflate large responses of the connection.
+     * Compressed responses carry {@code ;deflate} behind their mime type.
+     */
+    static final String COMPRESS = "COMPRESS";
 
     private static final Logger LOG = LoggerFactory.getLogger(LegacyHandler.class);
     
-    private final ConcurrentMap<Channel, InternalHttpRequest> requests = Maps.newConcurrentMap();
+    private static final ChannelFutureListener[] NONE = {};
+    private static final ChannelFutureListener[] CLOSE = {ChannelFutureListener.CLOSE};
+    private static final ChannelFutureListener[] PROGRESS = {ProgressLogger.INSTANCE};
     
     private final IpcConnectionCreateEvent connectionCreateEvent;
     
@@ -95,11 +121,21 @@ final class LegacyHandler extends SimpleChannelHandler implements Initializable
     
     private final Executor executor;
     
-    /**
-     * When set to true {@link Channel}s will be set un-readable during
-     * processing to prevent {@link OutOfMemoryError}s. 
-     */
-    private boolean throttle;
+    private final LegacyBatchExecutor batchExecutor;
+    
+    private final AdmissionHandler admission;
+    
+    private final CallDeadlines deadlines;
+    
+    private final BackpressureHandler backpressure;
+    
+    private final CommandLoader loader;
+    
+    private final ClientErrors errors;
+    
+    private final LegacyExecution execution;
+    
+    private final LegacyContentEncoder encoder;
     
     @Inject
     public LegacyHandler(
@@ -109,7 +145,15 @@ final class LegacyHandler extends SimpleChannelHandler implements Initializable
         @SilentProxy IpcCallDestroyEvent callDestroyEvent,
         IpcSessionProvider sessionProvider, 
         IpcCallScope scope, 
-        Executor executor) {
+        Executor executor,
+        LegacyBatchExecutor batchExecutor,
+        AdmissionHandler admission,
+        CallDeadlines deadlines,
+        BackpressureHandler backpressure,
+        CommandLoader loader,
+        ClientErrors errors,
+        LegacyExecution execution,
+        LegacyContentEncoder encoder) {
         this.connectionCreateEvent = Preconditions.checkNotNull(connectionCreateEvent, "CreateEvent");
         this.connectionDestroyEvent = Preconditions.checkNotNull(connectionDestroyEvent, "DestroyEvent");
         this.callCreateEvent = Preconditions.checkNotNull(callCreateEvent, "CreateEvent");
@@ -117,21 +161,20 @@ final class LegacyHandler extends SimpleChannelHandler implements Initializable
         this.sessionProvider = Preconditions.checkNotNull(sessionProvider, "SessionProvider");
         this.scope = Preconditions.checkNotNull(scope, "Scope");
         this.executor = Preconditions.checkNotNull(executor, "Executor");
+        this.batchExecutor = Preconditions.checkNotNull(batchExecutor, "BatchExecutor");
+        this.admission = Preconditions.checkNotNull(admission, "Admission");
+        this.deadlines = Preconditions.checkNotNull(deadlines, "Deadlines");
+        this.backpressure = Preconditions.checkNotNull(backpressure, "Backpressure");
+        this.loader = Preconditions.checkNotNull(loader, "Loader");
+        this.errors = Preconditions.checkNotNull(errors, "Errors");
+        this.execution = Preconditions.checkNotNull(execution, "Execution");
+        this.encoder = Preconditions.checkNotNull(encoder, "Encoder");
     }
 
-    @Inject(optional = true)
-    void setThrottle(@Named(LegacyNettyConfig.THROTTLE) boolean throttle) {
-        this.throttle = throttle;
-    }
-    
-    @Override
-    public void initialize() throws LifecycleException {
-        LOG.info("Throttling is set to {}", throttle);
-    }
-    
     @Override
     public void channelConnected(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
-        requests.put(event.getChannel(), new InternalHttpRequest());
+        // every channel has its own pipeline and therefore its own context
+        context.setAttachment(new InternalHttpRequest());
     }
     
     @Override
@@ -139,52 +182,130 @@ final class LegacyHandler extends SimpleChannelHandler implements Initializable
         final Object message = event.getMessage();
         if (message instanceof Call) {
             final Call call = Call.class.cast(message);
-            final CallType type = call.getHeader().getCallType();
+            final LegacyHeader header = LegacyHeader.class.cast(call.getHeader());
+            final CallType type = header.getCallType();
             final Channel channel = event.getChannel();
+            final InternalHttpRequest request = requestOf(context);
             
             if (type == CallType.CLOSE) {
-                channel.write(ChannelBuffers.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                backpressure.release(channel, header.getHeapSize());
+                // closes as soon as all preceding responses have been written
+                request.respond(channel, header.getSequence(), ChannelBuffers.EMPTY_BUFFER, CLOSE);
                 // nothing to do anymore
                 return;
             }
             
-            if (throttle) {
-                channel.setReadable(false);
-            }
-            
             final Content content;
             
-            if (type == CallType.OPEN) {
-                content = open(call, channel);
+            try {
+                if (type == CallType.OPEN) {
+                    if (request.isClosed()) {
+                        // queued behind the close, the connection is gone already
+                        return;
+                    }
+                    content = open(call, channel, request);
+                } else {
+                    try {
+                        content = dispatch(call, request);
+                    } finally {
+                        // the work is done, responding is cheap
+                        admission.release(channel);
+                    }
+                }
+            } finally {
+                // the call has been consumed, its response is tracked on its own
+                backpressure.release(channel, header.getHeapSize());
+            }
+
+            if (content != null) {
+                // encoded and compressed here, outside of the response sequencer
+                final ChannelBuffer response = encoder.encode(channel, content, header.getRequestId());
+                request.respond(channel, header, response, listeners());
+            }
+        } else if (message instanceof AdmissionHandler.Rejection) {
+            final AdmissionHandler.Rejection rejection = AdmissionHandler.Rejection.class.cast(message);
+            final LegacyHeader header = rejection.getHeader();
+            final Channel channel = event.getChannel();
+            backpressure.release(channel, header.getHeapSize());
+            final ChannelBuffer response = encoder.encode(channel, rejection.getContent(), header.getRequestId());
+            requestOf(context).respond(channel, header, response, NONE);
+        }
+    }
+    
+    /**
+     * Counts a call which is about to be queued for execution on a worker thread as in flight.
+     * Has to be invoked on the I/O thread, before the channel can be closed.
+     * 
+     * @since 1.4
+     * @param channel the channel the call has been received on
+     */
+    void queued(Channel channel) {
+        // dispatch ends every queued call, so this must not be skipped
+        requestOf(channel.getPipeline().getContext(this)).beginCall();
+    }
+    
+    /**
+     * Dispatches the given call.
+     * 
+     * @return the content to respond with or null if nobody is going to read it
+     */
+    private Content dispatch(Call call, InternalHttpRequest request) {
+        if (execution.getHandler() == null) {
+            // executed right here, queued calls have been counted already
+            request.beginCall();
+        }
+        try {
+            final LegacyHeader header = LegacyHeader.class.cast(call.getHeader());
+            if (request.isClosed()) {
+                LOG.trace("Skipping {}, the connection has been closed", header);
+                call.discard();
+                return null;
+            } else if (admission.isOverdue(header)) {
+                LOG.debug("Dropping {} after waiting too long", header);
+                call.discard();
+                return admission.getOverloadedContent();
+            } else if (call instanceof BatchCall) {
+                return batch(BatchCall.class.cast(call), request);
             } else if (call instanceof DetachedCall) {
                 final DetachedCall detachedCall = DetachedCall.class.cast(call);
-                final HttpRequest request = requests.get(channel);
                 detachedCall.attachTo(request);
-                content = call(detachedCall);
+                return call(detachedCall, request);
             } else {
                 throw new IllegalStateException(String.format("%s is of unknown type", call));
             }
-
-            final ChannelFuture future = channel.write(content);
-            
-            if (LOG.isDebugEnabled()) {
-                future.addListener(ProgressLogger.INSTANCE);
-            }
-            
-            if (throttle) {
-                future.addListener(SetReadable.INSTANCE);
+        } finally {
+            if (request.endCall()) {
+                destroy(request);
             }
         }
     }
     
-    private Content open(Call call, Channel channel) {
-        final InternalHttpRequest request = requests.get(channel);
+    private ChannelFutureListener[] listeners() {
+        return LOG.isDebugEnabled() ? PROGRESS : NONE;
+    }
+    
+    private InternalHttpRequest requestOf(ChannelHandlerContext context) {
+        return InternalHttpRequest.class.cast(context.getAttachment());
+    }
+    
+    private Content open(Call call, Channel channel, InternalHttpRequest request) {
         final Arguments arguments = call.getArguments();
         request.setReferer(arguments.getString(HTTP_REFERER, null));
         final String remoteAddress = arguments.getString(REMOTE_ADDR, null);
         request.setRemoteAddress(remoteAddress);
         request.setRequestUri(arguments.getString(REQUEST_URI, null));
         request.setUserAgent(arguments.getString(HTTP_USER_AGENT, null));
+        request.setTimeout(arguments.getLong(TIMEOUT, 0L));
+        
+        if (arguments.getBoolean(MULTIPLEX, false)) {
+            LOG.trace("Multiplexing {}", channel);
+            channel.getPipeline().get(LegacyFrameDecoder.class).setMultiplexed(true);
+        }
+        
+        if (arguments.getBoolean(COMPRESS, false)) {
+            LOG.trace("Compressing large responses of {}", channel);
+            channel.getPipeline().get(LegacyContentEncoder.class).setCompressing(channel);
+        }
         
         if (!request.isAttached()) {
             final String sessionId = call.getHeader().getSessionId();
@@ -198,23 +319,137 @@ final class LegacyHandler extends SimpleChannelHandler implements Initializable
         return new JsonContent(Collections.singletonMap("sessionId", sessionId));
     }
     
-    private Content call(final Call call) {
+    private Content call(final DetachedCall call, InternalHttpRequest request) {
+        // resolved exactly once, the deadline and the executor need the type
+        Class<?> type = null;
+        RuntimeException unresolved = null;
+        try {
+            type = loader.getType(call.getHeader().getAliasedName());
+        /* CHECKSTYLE:OFF */
+        } catch (RuntimeException e) {
+        /* CHECKSTYLE:ON */
+            // answered like every other failing call, never by closing the connection
+            unresolved = e;
+        }
+        final CallDeadlines.Watch watch = deadlines.watch(type, request.getTimeout());
+        request.register(watch);
+        final Content content;
         try {
             callCreateEvent.eventIpcCallCreate(call);
             scope.enter(call);
             Scopes.setCurrentCall(call);
-            return executor.execute(call);
+            content = type == null ? errors.create(unresolved) : executor.execute(call, type);
         } finally {
+            request.unregister(watch);
+            watch.finish();
             Scopes.clean();
-            callDestroyEvent.eventIpcCallDestroy(call);
-            scope.exit();
+            try {
+                callDestroyEvent.eventIpcCallDestroy(call);
+            } finally {
+                // worker threads outlive the call, never leak scope state into the next one
+                scope.exit();
+                call.discard();
+            }
+        }
+        if (watch.isExpired()) {
+            LOG.debug("{} exceeded its deadline", call.getHeader());
+            return ErrorContent.create(new TimeoutException(call.getHeader().getAliasedName() + " timed out"));
+        } else {
+            return content;
         }
     }
     
+    private Content batch(BatchCall batch, final InternalHttpRequest request) {
+        try {
+            final List<DetachedCall> calls = batch.getCalls();
+            if (calls.size() > batchExecutor.getMaxBatchSize()) {
+                return ErrorContent.create(new IllegalArgumentException(String.format(
+                    "Batch of %s calls exceeds the limit of %s", calls.size(), batchExecutor.getMaxBatchSize()
+                )));
+            }
+            
+            final List<Callable<Content>> tasks = Lists.newArrayListWithCapacity(calls.size());
+            for (final DetachedCall entry : calls) {
+                entry.attachTo(request);
+                tasks.add(new Callable<Content>() {
+                    
+                    @Override
+                    public Content call() {
+                        return LegacyHandler.this.call(entry, request);
+                    }
+                    
+                });
+            }
+            
+            final List<Content> contents = batchExecutor.execute(tasks);
+            final List<Map<String, Object>> results = Lists.newArrayListWithCapacity(contents.size());
+            for (int i = 0; i < contents.size(); i++) {
+                results.add(describe(calls.get(i).getHeader().getAliasedName(), contents.get(i)));
+            }
+            return StreamingJsonContent.of(Collections.<String, Object>singletonMap("results", results));
+        } catch (IllegalArgumentException e) {
+            return ErrorContent.create(e);
+        /* CHECKSTYLE:OFF */
+        } catch (Exception e) {
+        /* CHECKSTYLE:ON */
+            LOG.error("Unable to encode results of " + batch.getHeader(), e);
+            return ErrorContent.create(e);
+        } finally {
+            batch.discard();
+        }
+    }
+    
+    /**
+     * Describes the outcome of a single batch entry. Json contents, including json
+     * errors, are embedded as they are, without being parsed again.
+     */
+    private Map<String, Object> describe(String name, Content content) {
+        final Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("name", name);
+        try {
+            final String text = new String(content.getBytes(), Charsets.UTF_8);
+            final String key = content instanceof ErrorContent ? "error" : "result";
+            if (isJson(content)) {
+                result.put(key, StreamingJsonContent.raw(text));
+            } else if (content instanceof ErrorContent) {
+                final Map<String, Object> error = Maps.newLinkedHashMap();
+                error.put("mimeType", content.getMimeType().getName());
+                error.put("message", text);
+                result.put(key, error);
+            } else {
+                result.put("mimeType", content.getMimeType().getName());
+                result.put(key, text);
+            }
+        /* CHECKSTYLE:OFF */
+        } catch (Exception e) {
+        /* CHECKSTYLE:ON */
+            LOG.warn("Unable to encode result of batch entry " + name, e);
+            result.put("error", Collections.singletonMap("message", e.toString()));
+        }
+        return result;
+    }
+    
+    private boolean isJson(Content content) {
+        return content instanceof JsonContent || content instanceof StreamingJsonContent ||
+            StreamingJsonContent.MIME_TYPE.getName().equals(content.getMimeType().getName());
+    }
+    
+    /**
+     * Always invoked on the I/O thread, even if calls are executed on worker threads,
+     * so running calls are interrupted right away and queued calls are skipped.
+     */
     @Override
     public void channelClosed(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
-        final Channel channel = event.getChannel();
-        final DetachedHttpRequest request = requests.remove(channel);
+        // the attachment dies with the pipeline, calls still queued can safely access it
+        final InternalHttpRequest request = requestOf(context);
+        // nobody is going to read the responses anymore
+        request.cancelAll();
+        if (request.close()) {
+            destroy(request);
+        }
+    }
+    
+    private void destroy(DetachedHttpRequest request) {
         LOG.trace("Closing connection {}", request);
         connectionDestroyEvent.eventIpcConnectionDestroy(request);
         request.clear();
@@ -223,7 +458,7 @@ final class LegacyHandler extends SimpleChannelHandler implements Initializable
     @Override
     public void exceptionCaught(ChannelHandlerContext context, ExceptionEvent event) throws Exception {
         final Channel channel = event.getChannel();
-        final DetachedHttpRequest request = requests.get(channel);
+        final DetachedHttpRequest request = requestOf(context);
         final Object remoteAddress = request == null ? channel.getRemoteAddress() : request.getRemoteAddress();
         LOG.error("Uncaught exception while communicating with " + remoteAddress, event.getCause());
         channel.close();
@@ -238,6 +473,20 @@ final class LegacyHandler extends SimpleChannelHandler implements Initializable
     private static final class InternalHttpRequest extends ConcurrentMapScopeContext 
         implements DetachedHttpRequest {
 
+        private final ResponseSequencer responses = new ResponseSequencer();
+        
+        private final AtomicInteger running = new AtomicInteger();
+        
+        private final AtomicBoolean destroyed = new AtomicBoolean();
+        
+        private final Set<CallDeadlines.Watch> watches = Sets.newSetFromMap(
+            Maps.<CallDeadlines.Watch, Boolean>newConcurrentMap()
+        );
+        
+        private volatile long timeout;
+        
+        private volatile boolean closed;
+        
         private HttpSession session;
         
         private String referer;
@@ -312,6 +561,74 @@ final class LegacyHandler extends SimpleChannelHandler implements Initializable
             this.userAgent = userAgent;
         }
         
+        long getTimeout() {
+            return timeout;
+        }
+        
+        void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+        
+        void register(CallDeadlines.Watch watch) {
+            watches.add(watch);
+        }
+        
+        void unregister(CallDeadlines.Watch watch) {
+            watches.remove(watch);
+        }
+        
+        boolean isClosed() {
+            return closed;
+        }
+        
+        void cancelAll() {
+            for (CallDeadlines.Watch watch : watches) {
+                watch.cancel();
+            }
+        }
+        
+        void respond(Channel channel, int sequence, Object message, ChannelFutureListener[] listeners) {
+            responses.write(channel, sequence, message, listeners);
+        }
+        
+        void respond(Channel channel, LegacyHeader header, ChannelBuffer response, 
+            ChannelFutureListener[] listeners) {
+            if (header.getRequestId() == -1) {
+                responses.write(channel, header.getSequence(), response, listeners);
+            } else {
+                // the client matches responses by id, no need to wait for slower calls
+                responses.writeNow(channel, header.getSequence(), response, listeners);
+            }
+        }
+        
+        /**
+         * Marks a call as in flight, from the moment it has been queued.
+         */
+        void beginCall() {
+            running.incrementAndGet();
+        }
+        
+        /**
+         * Marks a call as finished.
+         * 
+         * @return true if the connection has been closed in the meantime and
+         *         the caller is responsible for destroying this request
+         */
+        boolean endCall() {
+            return running.decrementAndGet() == 0 && closed && destroyed.compareAndSet(false, true);
+        }
+        
+        /**
+         * Marks the connection as closed.
+         * 
+         * @return true if no calls are running and the caller is responsible
+         *         for destroying this request
+         */
+        boolean close() {
+            closed = true;
+            return running.get() == 0 && destroyed.compareAndSet(false, true);
+        }
+        
     }
     
 }
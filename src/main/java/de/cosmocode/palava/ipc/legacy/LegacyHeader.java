@@ -0,0 +1,133 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.io.InputStream;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import de.cosmocode.palava.bridge.Header;
+
+/**
+ * A {@link Header} produced by the {@link LegacyFrameDecoder} which gives direct
+ * access to the content bytes without copying them.
+ *
+ * <p>
+ *   The content buffer returned by {@link #getContentBuffer()} is a read-only slice
+ *   of the buffer the frame was decoded from. It is owned by the frame decoder and
+ *   stays valid only until the decoder of the same channel receives the next chunk.
+ *   Everyone who needs to keep a header beyond the processing of the current
+ *   upstream message event, e.g. by handing it to another thread, has to
+ *   {@link #detach()} it first.
+ * </p>
+ * 
+ * <p>
+ *   Large binary contents may be spilled to a temporary file instead, in which case
+ *   the header owns the file and {@link #release()} deletes it.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@SuppressWarnings("deprecation")
+interface LegacyHeader extends Header {
+
+    /**
+     * Provides a read-only view of the content. Every invocation returns a new view
+     * with independent reader and writer indices.
+     *
+     * @since 1.4
+     * @return the content of this header
+     */
+    ChannelBuffer getContentBuffer();
+    
+    /**
+     * Provides the number of content bytes this header holds in memory. Contents which
+     * have been spilled to disk occupy no memory, even though their
+     * {@link #getContentLength() content length} may be huge.
+     *
+     * @since 1.4
+     * @return the number of content bytes on the heap, zero for spilled contents
+     */
+    int getHeapSize();
+    
+    /**
+     * Provides the position of this frame on its channel, starting at zero.
+     * Responses have to be written in the order of this sequence.
+     *
+     * @since 1.4
+     * @return the sequence number of this frame
+     */
+    int getSequence();
+    
+    /**
+     * Provides the id the client assigned to this frame. Request ids are only
+     * sent by clients which negotiated multiplexing when opening the connection.
+     * Responses to those frames carry the same id and are written as soon as they
+     * are ready, regardless of their {@link #getSequence() sequence}.
+     *
+     * @since 1.4
+     * @return the request id or -1 if this frame has none
+     */
+    int getRequestId();
+    
+    /**
+     * Provides the point in time at which this frame has been completely received.
+     *
+     * @since 1.4
+     * @return the arrival time, as measured by {@link System#nanoTime()}
+     */
+    long getArrivalTime();
+    
+    /**
+     * Checks whether this header belongs to a batch frame. Batch frames are reported
+     * as {@link de.cosmocode.palava.bridge.call.CallType#JSON json} calls whose content
+     * is a json array of objects, each holding the {@code name} and {@code arguments}
+     * of a single command.
+     *
+     * @since 1.4
+     * @return true if this is a batch header, false otherwise
+     */
+    boolean isBatch();
+    
+    /**
+     * Opens a new stream of the content. Headers whose content has been spilled
+     * to disk stream directly from the file.
+     *
+     * @since 1.4
+     * @return a new input stream
+     */
+    InputStream openStream();
+
+    /**
+     * Returns a header with the same values which owns its content and is therefore
+     * no longer bound to the lifecycle of the underlying channel buffer.
+     *
+     * @since 1.4
+     * @return a detached header, may be this if this header already owns its content
+     */
+    LegacyHeader detach();
+    
+    /**
+     * Releases all resources held by this header, e.g. a spill file. The content
+     * must not be accessed afterwards.
+     *
+     * @since 1.4
+     */
+    void release();
+
+}
@@ -18,16 +18,22 @@ package de.cosmocode.palava.ipc.legacy;
 
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.annotation.concurrent.ThreadSafe;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -39,13 +45,13 @@ import com.google.common.base.Preconditions;
 import de.cosmocode.collections.utility.AbstractUtilityMap;
 import de.cosmocode.collections.utility.UtilityMap;
 import de.cosmocode.collections.utility.UtilitySet;
-import de.cosmocode.commons.io.ByteBuffers;
 import de.cosmocode.json.JSON;
 import de.cosmocode.palava.bridge.ConnectionLostException;
 import de.cosmocode.palava.bridge.Header;
 import de.cosmocode.palava.bridge.call.Arguments;
 import de.cosmocode.palava.bridge.call.BinaryCall;
 import de.cosmocode.palava.bridge.call.Call;
+import de.cosmocode.palava.bridge.call.CallType;
 import de.cosmocode.palava.bridge.call.DataCall;
 import de.cosmocode.palava.bridge.call.JsonCall;
 import de.cosmocode.palava.bridge.call.MissingArgumentException;
@@ -53,7 +59,6 @@ import de.cosmocode.palava.bridge.call.TextCall;
 import de.cosmocode.palava.bridge.request.HttpRequest;
 import de.cosmocode.palava.ipc.IpcCall;
 import de.cosmocode.palava.ipc.IpcConnection;
-import de.cosmocode.palava.scope.ConcurrentMapScopeContext;
 
 /**
  * A decoder which decodes {@link Header}s into {@link IpcCall}s.
@@ -70,8 +75,8 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
     
     @Override
     protected Object decode(ChannelHandlerContext context, Channel channel, Object message) throws Exception {
-        if (message instanceof Header) {
-            final Header header = Header.class.cast(message);
+        if (message instanceof LegacyHeader) {
+            final LegacyHeader header = LegacyHeader.class.cast(message);
             LOG.trace("Incoming call {}", header);
             switch (header.getCallType()) {
                 case OPEN: {
@@ -81,7 +86,11 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
                     return new InternalDataCall(header);
                 }
                 case JSON: {
-                    return new InternalJsonCall(header);
+                    if (header.isBatch()) {
+                        return new InternalBatchCall(header);
+                    } else {
+                        return new InternalJsonCall(header);
+                    }
                 }
                 case TEXT: {
                     return new InternalTextCall(header);
@@ -107,10 +116,23 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
      * @since 1.0
      * @author Willi Schoenborn
      */
-    private abstract static class AbstractCall extends ConcurrentMapScopeContext implements DetachedCall {
+    private abstract static class AbstractCall extends CompactScopeContext implements DetachedCall {
+        
+        private final LegacyHeader header;
         
         private HttpRequest request;
         
+        private String text;
+        
+        protected AbstractCall(LegacyHeader header) {
+            this.header = header;
+        }
+        
+        @Override
+        public final LegacyHeader getHeader() {
+            return header;
+        }
+        
         @Override
         public void attachTo(HttpRequest r) {
             this.request = Preconditions.checkNotNull(r, "Request");
@@ -118,7 +140,7 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
         
         @Override
         public void discard() {
-            // nothing to do
+            header.release();
         }
         
         @Override
@@ -138,15 +160,25 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
         
         @Override
         public InputStream getInputStream() {
-            return ByteBuffers.asInputStream(getHeader().getContent());
+            return header.openStream();
         }
         
+        /**
+         * Decodes the content on first access, at most once per call.
+         * 
+         * @return the decoded content
+         */
         protected final String decodeContent() {
-            final Header header = getHeader();
-            final ByteBuffer buffer = header.getContent();
-            final byte[] bytes = new byte[header.getContentLength()];
-            buffer.get(bytes);
-            return new String(bytes, Charsets.UTF_8);
+            if (text == null) {
+                // decodes straight from the frame, no intermediate byte[]
+                text = header.getContentBuffer().toString(Charsets.UTF_8);
+            }
+            return text;
+        }
+        
+        protected final boolean startsWith(char c) {
+            final ChannelBuffer buffer = header.getContentBuffer();
+            return buffer.readable() && buffer.getByte(buffer.readerIndex()) == c;
         }
         
     }
@@ -159,25 +191,20 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
      */
     private static final class OpenCall extends AbstractCall {
         
-        private final Header header;
-        
-        private final JsonCall call;
+        private JsonCall call;
         
-        private OpenCall(Header header) {
-            this.header = header;
-            this.call = new InternalJsonCall(header);
+        private OpenCall(LegacyHeader header) {
+            super(header);
         }
         
         @Override
         public Arguments getArguments() {
+            if (call == null) {
+                call = new InternalJsonCall(getHeader());
+            }
             return call.getArguments();
         }
         
-        @Override
-        public Header getHeader() {
-            return header;
-        }
-        
     }
     
     /**
@@ -188,28 +215,23 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
      */
     private static final class InternalDataCall extends AbstractCall implements DataCall {
         
-        private final Header header;
-
-        private final InternalJsonCall call;
+        private InternalJsonCall call;
         
-        public InternalDataCall(Header header) {
-            this.header = header;
-            this.call = new InternalJsonCall(header);
+        public InternalDataCall(LegacyHeader header) {
+            super(header);
         }
 
         @Override
         public Arguments getArguments() {
+            if (call == null) {
+                call = new InternalJsonCall(getHeader());
+            }
             return call.getArguments();
         }
         
-        @Override
-        public Header getHeader() {
-            return header;
-        }
-        
         @Override
         public Map<String, String> getStringedArguments() {
-            if (!call.getText().startsWith("{")) {
+            if (!startsWith('{')) {
                 // dirty hack to ignore everything that is not a JsonObject
                 return new LinkedHashMap<String, String>();
             } else {
@@ -232,26 +254,18 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
      */
     private static final class InternalJsonCall extends AbstractCall implements JsonCall {
         
-        private final Header header;
-
-        private final String text;
-        
         private JSONObject json;
         private UtilityMap<String, Object> map;
         private Arguments arguments;
         
-        public InternalJsonCall(Header header) {
-            this.header = header;
-            this.text = decodeContent();
-        }
-
-        public String getText() {
-            return text;
+        public InternalJsonCall(LegacyHeader header) {
+            super(header);
         }
         
         @Override
         public JSONObject getJSONObject() throws ConnectionLostException, JSONException {
             if (json == null) {
+                final String text = decodeContent();
                 LOG.trace("Decoding {}", text);
                 json = new JSONObject(text);
             }
@@ -266,24 +280,31 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
             return arguments;
         }
         
-        @Override
-        public Header getHeader() {
-            return header;
-        }
-        
         /**
          * Internal implementation of the {@link Arguments} interface.
+         * 
+         * <p>
+         *   Single values are read through a {@link JsonIndex} directly from the content
+         *   bytes. The complete {@link JSONObject} is only built when all entries are
+         *   requested, e.g. during iteration.
+         * </p>
          *
          * @since 1.0 
          * @author Willi Schoenborn
          */
         private class InternalArguments extends AbstractUtilityMap<String, Object> implements Arguments {
             
+            private JsonIndex index;
+            
+            /**
+             * Values put before the complete object has been loaded.
+             */
+            private Map<String, Object> overrides;
+            
             @Override
             public void require(String... keys) throws MissingArgumentException {
-                final Set<String> keySet = keySet();
                 for (String key : keys) {
-                    if (keySet.contains(key)) {
+                    if (containsKey(key)) {
                         continue;
                     } else {
                         throw new MissingArgumentException(key);
@@ -291,6 +312,13 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
                 }                
             }
             
+            private JsonIndex index() {
+                if (index == null) {
+                    index = JsonIndex.of(getHeader().getContentBuffer());
+                }
+                return index;
+            }
+            
             private void lazyLoad() {
                 if (json == null) {
                     try {
@@ -301,6 +329,34 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
                 }
                 if (map == null) {
                     map = JSON.asMap(json);
+                    if (overrides != null) {
+                        for (Map.Entry<String, Object> entry : overrides.entrySet()) {
+                            put(entry.getKey(), entry.getValue());
+                        }
+                        overrides = null;
+                    }
+                }
+            }
+            
+            @Override
+            public boolean containsKey(Object key) {
+                if (map != null) {
+                    return map.containsKey(key);
+                } else if (overrides != null && overrides.containsKey(key)) {
+                    return true;
+                } else {
+                    return index().containsKey(key);
+                }
+            }
+            
+            @Override
+            public Object get(Object key) {
+                if (map != null) {
+                    return map.get(key);
+                } else if (overrides != null && overrides.containsKey(key)) {
+                    return overrides.get(key);
+                } else {
+                    return index().get(key);
                 }
             }
             
@@ -312,7 +368,14 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
             
             @Override
             public Object put(String key, Object value) {
-                lazyLoad();
+                if (map == null) {
+                    if (overrides == null) {
+                        overrides = new LinkedHashMap<String, Object>();
+                    }
+                    final Object previous = get(key);
+                    overrides.put(key, value);
+                    return previous;
+                }
                 try {
                     return json.put(key, value);
                 } catch (JSONException e) {
@@ -325,53 +388,174 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
     }
     
     /**
-     * Internal implementation of the {@link TextCall} interface.
+     * Internal implementation of the {@link BatchCall} interface.
      *
-     * @since 1.0
+     * @since 1.4
      * @author Willi Schoenborn
      */
-    private static final class InternalTextCall extends AbstractCall implements TextCall {
+    private static final class InternalBatchCall extends AbstractCall implements BatchCall {
         
-        private final Header header;
+        private List<DetachedCall> calls;
         
-        private String text;
+        public InternalBatchCall(LegacyHeader header) {
+            super(header);
+        }
         
-        public InternalTextCall(Header header) {
-            this.header = header;
+        @Override
+        public List<DetachedCall> getCalls() {
+            if (calls == null) {
+                final JSONArray array;
+                try {
+                    array = new JSONArray(decodeContent());
+                } catch (JSONException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                final List<DetachedCall> list = new ArrayList<DetachedCall>(array.length());
+                for (int i = 0; i < array.length(); i++) {
+                    final JSONObject entry = array.optJSONObject(i);
+                    Preconditions.checkArgument(entry != null, "Batch entry %s is not an object", i);
+                    final String name = entry.optString("name", null);
+                    Preconditions.checkArgument(name != null, "Batch entry %s has no name", i);
+                    final JSONObject arguments = entry.optJSONObject("arguments");
+                    final String json = arguments == null ? "{}" : arguments.toString();
+                    list.add(new InternalJsonCall(new BatchEntryHeader(getHeader(), name, json)));
+                }
+                calls = Collections.unmodifiableList(list);
+            }
+            return calls;
+        }
+        
+    }
+    
+    /**
+     * A {@link LegacyHeader} of a single entry of a batch. It owns its content,
+     * which is re-encoded from the arguments of the entry.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class BatchEntryHeader implements LegacyHeader {
+        
+        private final LegacyHeader batch;
+        
+        private final String name;
+        
+        private final ChannelBuffer content;
+        
+        public BatchEntryHeader(LegacyHeader batch, String name, String arguments) {
+            this.batch = batch;
+            this.name = name;
+            this.content = ChannelBuffers.unmodifiableBuffer(
+                ChannelBuffers.wrappedBuffer(arguments.getBytes(Charsets.UTF_8))
+            );
         }
         
         @Override
-        public Header getHeader() {
-            return header;
+        public CallType getCallType() {
+            return CallType.JSON;
         }
-
+        
         @Override
-        public String getText() {
-            if (text == null) {
-                text = decodeContent();
-            }
-            return text;
+        public String getAliasedName() {
+            return name;
+        }
+        
+        @Override
+        public String getSessionId() {
+            return batch.getSessionId();
+        }
+        
+        @Override
+        public int getContentLength() {
+            return content.readableBytes();
+        }
+        
+        @Override
+        public int getHeapSize() {
+            return content.readableBytes();
+        }
+        
+        @Override
+        public ByteBuffer getContent() {
+            return content.toByteBuffer();
+        }
+        
+        @Override
+        public ChannelBuffer getContentBuffer() {
+            return content.duplicate();
+        }
+        
+        @Override
+        public int getSequence() {
+            return batch.getSequence();
+        }
+        
+        @Override
+        public int getRequestId() {
+            return batch.getRequestId();
+        }
+        
+        @Override
+        public long getArrivalTime() {
+            return batch.getArrivalTime();
+        }
+        
+        @Override
+        public boolean isBatch() {
+            return false;
+        }
+        
+        @Override
+        public InputStream openStream() {
+            return new ChannelBufferInputStream(getContentBuffer());
+        }
+        
+        @Override
+        public LegacyHeader detach() {
+            return this;
+        }
+        
+        @Override
+        public void release() {
+            // nothing to do, the garbage collector takes care of the buffer
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("BatchEntryHeader [name=%s, batch=%s]", name, batch);
         }
         
     }
     
     /**
-     * Internal implementation of the {@link BinaryCall} interface.
+     * Internal implementation of the {@link TextCall} interface.
      *
      * @since 1.0
      * @author Willi Schoenborn
      */
-    private static final class InternalBinaryCall extends AbstractCall implements BinaryCall {
+    private static final class InternalTextCall extends AbstractCall implements TextCall {
         
-        private final Header header;
-
-        public InternalBinaryCall(Header header) {
-            this.header = header;
+        public InternalTextCall(LegacyHeader header) {
+            super(header);
         }
         
         @Override
-        public Header getHeader() {
-            return header;
+        public String getText() {
+            return decodeContent();
+        }
+        
+    }
+    
+    /**
+     * Internal implementation of the {@link BinaryCall} interface.
+     *
+     * @since 1.0
+     * @author Willi Schoenborn
+     */
+    private static final class InternalBinaryCall extends AbstractCall implements BinaryCall {
+        
+        public InternalBinaryCall(LegacyHeader header) {
+            super(header);
         }
 
     }
@@ -384,15 +568,8 @@ final class LegacyHeaderDecoder extends OneToOneDecoder {
      */
     private static final class CloseCall extends AbstractCall {
         
-        private final Header header;
-        
-        private CloseCall(Header header) {
-            this.header = header;
-        }
-        
-        @Override
-        public Header getHeader() {
-            return header;
+        private CloseCall(LegacyHeader header) {
+            super(header);
         }
         
     }
@@ -27,7 +27,6 @@ import de.cosmocode.palava.bridge.Server;
 import de.cosmocode.palava.bridge.call.Call;
 import de.cosmocode.palava.bridge.command.Job;
 import de.cosmocode.palava.bridge.command.Response;
-import de.cosmocode.palava.bridge.content.ErrorContent;
 import de.cosmocode.palava.bridge.session.HttpSession;
 
 /**
@@ -43,9 +42,12 @@ final class LegacyJobExecutor implements JobExecutor {
 
     private final Server server;
     
+    private final ClientErrors errors;
+    
     @Inject
-    public LegacyJobExecutor(Server server) {
+    public LegacyJobExecutor(Server server, ClientErrors errors) {
         this.server = Preconditions.checkNotNull(server, "Server");
+        this.errors = Preconditions.checkNotNull(errors, "Errors");
     }
     
     @Override
@@ -60,8 +62,10 @@ final class LegacyJobExecutor implements JobExecutor {
         /* CHECKSTYLE:OFF */
         } catch (Exception e) {
         /* CHECKSTYLE:ON */
-            LOG.error("An undeclared exception was thrown while executing " + job, e);
-            return ErrorContent.create(e);
+            if (!errors.isClientError(e)) {
+                LOG.error("An undeclared exception was thrown while executing " + job, e);
+            }
+            return errors.create(e);
         }
     }
     
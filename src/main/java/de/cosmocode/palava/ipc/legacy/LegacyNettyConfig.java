@@ -26,7 +26,53 @@ final class LegacyNettyConfig {
 
     public static final String PREFIX = "legacy.";
     
-    public static final String THROTTLE = PREFIX + "throttle";
+    public static final String SPILL_THRESHOLD = PREFIX + "spillThreshold";
+    
+    public static final String MAX_TOKEN_LENGTH = PREFIX + "maxTokenLength";
+    
+    public static final String MAX_CONTENT_LENGTH = PREFIX + "maxContentLength";
+    
+    public static final String EXECUTION_MODE = PREFIX + "executionMode";
+    
+    public static final String EXECUTION_THREADS = PREFIX + "executionThreads";
+    
+    public static final String PIPELINING = PREFIX + "pipelining";
+    
+    public static final String BATCH_THREADS = PREFIX + "batchThreads";
+    
+    public static final String MAX_BATCH_SIZE = PREFIX + "maxBatchSize";
+    
+    public static final String MAX_CALLS = PREFIX + "maxCalls";
+    
+    public static final String MAX_CALLS_PER_ADDRESS = PREFIX + "maxCallsPerAddress";
+    
+    public static final String QUEUE_TARGET = PREFIX + "queueTarget";
+    
+    public static final String QUEUE_INTERVAL = PREFIX + "queueInterval";
+    
+    public static final String CALL_TIMEOUT = PREFIX + "callTimeout";
+    
+    public static final String CHANNEL_HIGH_WATERMARK = PREFIX + "channelHighWatermark";
+    
+    public static final String CHANNEL_LOW_WATERMARK = PREFIX + "channelLowWatermark";
+    
+    public static final String GLOBAL_HIGH_WATERMARK = PREFIX + "globalHighWatermark";
+    
+    public static final String GLOBAL_LOW_WATERMARK = PREFIX + "globalLowWatermark";
+    
+    public static final String COMMAND_CACHE_SIZE = PREFIX + "commandCacheSize";
+    
+    public static final String UNKNOWN_COMMAND_CACHE_SIZE = PREFIX + "unknownCommandCacheSize";
+    
+    public static final String UNKNOWN_COMMAND_TTL = PREFIX + "unknownCommandTtl";
+    
+    public static final String WARMUP = PREFIX + "warmup";
+    
+    public static final String CLIENT_ERROR_LOG_INTERVAL = PREFIX + "clientErrorLogInterval";
+    
+    public static final String COMPRESSION_THRESHOLD = PREFIX + "compressionThreshold";
+    
+    public static final String COMPRESSION_LEVEL = PREFIX + "compressionLevel";
     
     private LegacyNettyConfig() {
         
@@ -18,6 +18,7 @@ package de.cosmocode.palava.ipc.legacy;
 
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.execution.ExecutionHandler;
 
 import com.google.inject.Binder;
 import com.google.inject.Module;
@@ -50,20 +51,37 @@ public final class LegacyNettyModule implements Module {
         // stateful decoders
         binder.bind(LegacyFrameDecoder.class);
         
+        // command names shared by all frame decoders
+        binder.bind(NameTable.class).in(Singleton.class);
+        
+        // counters
+        binder.bind(LegacyStatistics.class).in(Singleton.class);
+        
         // decoders/encoders
         binder.bind(LegacyHeaderDecoder.class).in(Singleton.class);
         binder.bind(LegacyContentEncoder.class).in(Singleton.class);
         binder.bind(LegacyHandler.class).in(Singleton.class);
+        
+        // optional execution stage
+        binder.bind(LegacyExecution.class).in(Singleton.class);
+        binder.bind(LegacyBatchExecutor.class).in(Singleton.class);
+        
+        // admission control and backpressure
+        binder.bind(AdmissionHandler.class).in(Singleton.class);
+        binder.bind(BackpressureHandler.class).in(Singleton.class);
+        binder.bind(CallDeadlines.class).in(Singleton.class);
 
         // empty set of aliases
         Multibinder.newSetBinder(binder, Alias.class);
         
         // cache used by executors
         binder.bind(CommandLoader.class).to(LegacyCommandLoader.class).in(Singleton.class);
+        binder.bind(LegacyWarmup.class).in(Singleton.class);
         
         // executors
         binder.bind(Executor.class).to(LegacyExecutor.class).in(Singleton.class);
         binder.bind(JobExecutor.class).to(LegacyJobExecutor.class).in(Singleton.class);
+        binder.bind(ClientErrors.class).in(Singleton.class);
         
         // server
         binder.bind(LegacyServer.class).in(Singleton.class);
@@ -80,6 +98,9 @@ public final class LegacyNettyModule implements Module {
      * 
      * @since 1.0
      * @param frameDecoder the frame decoder which decodes chunks into {@link Header}s
+     * @param backpressure the backpressure handler
+     * @param admission the admission control
+     * @param execution the execution stage
      * @param decoder the decoder
      * @param encoder the encoder
      * @param handler the handler
@@ -87,9 +108,23 @@ public final class LegacyNettyModule implements Module {
      */
     @Provides
     @Legacy
-    ChannelPipeline provideChannelPipeline(LegacyFrameDecoder frameDecoder, LegacyHeaderDecoder decoder, 
+    ChannelPipeline provideChannelPipeline(LegacyFrameDecoder frameDecoder, BackpressureHandler backpressure,
+        AdmissionHandler admission, LegacyExecution execution, LegacyHeaderDecoder decoder, 
         LegacyContentEncoder encoder, LegacyHandler handler) {
-        return Channels.pipeline(frameDecoder, decoder, encoder, handler);
+        final ChannelPipeline pipeline = Channels.pipeline(frameDecoder, backpressure);
+        if (admission.isLimiting()) {
+            // rejects on the I/O thread, before anything gets queued
+            pipeline.addLast("admission", admission);
+        }
+        final ExecutionHandler executionHandler = execution.getHandler();
+        if (executionHandler != null) {
+            // everything behind the execution handler runs on worker threads
+            pipeline.addLast("execution", executionHandler);
+        }
+        pipeline.addLast("decoder", decoder);
+        pipeline.addLast("encoder", encoder);
+        pipeline.addLast("handler", handler);
+        return pipeline;
     }
     
     /**
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Counters of the legacy protocol implementation, exported via JMX.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+final class LegacyStatistics implements LegacyStatisticsMBean, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LegacyStatistics.class);
+
+    private static final String NAME = "de.cosmocode.palava.ipc.legacy:type=LegacyStatistics";
+
+    private final AtomicLong rejectedFrames = new AtomicLong();
+
+    private final AtomicLong rejectedCalls = new AtomicLong();
+
+    private final AtomicLong shedCalls = new AtomicLong();
+
+    private final AtomicLong unknownCommandHits = new AtomicLong();
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    @Override
+    public void initialize() throws LifecycleException {
+        try {
+            server.registerMBean(this, new ObjectName(NAME));
+        } catch (JMException e) {
+            LOG.warn("Unable to register legacy statistics", e);
+        }
+    }
+
+    void frameRejected() {
+        rejectedFrames.incrementAndGet();
+    }
+
+    @Override
+    public long getRejectedFrames() {
+        return rejectedFrames.get();
+    }
+
+    void callRejected() {
+        rejectedCalls.incrementAndGet();
+    }
+
+    @Override
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    void callShed() {
+        shedCalls.incrementAndGet();
+    }
+
+    @Override
+    public long getShedCalls() {
+        return shedCalls.get();
+    }
+
+    void unknownCommandHit() {
+        unknownCommandHits.incrementAndGet();
+    }
+
+    @Override
+    public long getUnknownCommandHits() {
+        return unknownCommandHits.get();
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        try {
+            server.unregisterMBean(new ObjectName(NAME));
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister legacy statistics", e);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+/**
+ * Management interface of the legacy protocol statistics.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public interface LegacyStatisticsMBean {
+
+    /**
+     * Provides the number of frames which have been rejected because they
+     * exceeded a configured size limit.
+     *
+     * @since 1.4
+     * @return the number of rejected frames
+     */
+    long getRejectedFrames();
+
+    /**
+     * Provides the number of calls which have been rejected because too many
+     * calls were in flight.
+     *
+     * @since 1.4
+     * @return the number of rejected calls
+     */
+    long getRejectedCalls();
+
+    /**
+     * Provides the number of calls which have been dropped because they
+     * waited too long before they could be executed.
+     *
+     * @since 1.4
+     * @return the number of shed calls
+     */
+    long getShedCalls();
+
+    /**
+     * Provides the number of calls to unknown commands which have been answered
+     * from the negative cache.
+     *
+     * @since 1.4
+     * @return the number of negative cache hits
+     */
+    long getUnknownCommandHits();
+
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.ConfigurationException;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
+import com.google.inject.name.Named;
+
+import de.cosmocode.palava.bridge.command.Job;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.IpcCommand;
+
+/**
+ * Resolves a configured list of commands during startup, so the first calls after
+ * a deploy do not pay for class loading, alias resolution and just-in-time bindings.
+ *
+ * <p>
+ *   The list is comma separated. Every entry is either a command name, as sent by
+ *   clients, or a package followed by {@code .*}, which includes every command in
+ *   this package and its sub packages. Every resolved command is classified and
+ *   stored in an immutable {@link DispatchTable}, keyed by its class name. No
+ *   command is instantiated during warmup. Interfaces, abstract classes and classes
+ *   which are neither commands nor jobs are skipped, as are classes which can't be
+ *   resolved or bound, so warmup never prevents startup.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+@SuppressWarnings("deprecation")
+final class LegacyWarmup implements Initializable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LegacyWarmup.class);
+
+    private static final String WILDCARD = ".*";
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final Injector injector;
+
+    private final CommandLoader loader;
+
+    private String warmup = "";
+
+    private volatile DispatchTable table = DispatchTable.EMPTY;
+
+    @Inject
+    public LegacyWarmup(Injector injector, CommandLoader loader) {
+        this.injector = Preconditions.checkNotNull(injector, "Injector");
+        this.loader = Preconditions.checkNotNull(loader, "Loader");
+    }
+
+    @Inject(optional = true)
+    void setWarmup(@Named(LegacyNettyConfig.WARMUP) String warmup) {
+        this.warmup = Preconditions.checkNotNull(warmup, "Warmup");
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        final Set<String> names = Sets.newLinkedHashSet();
+        for (String entry : warmup.split(",")) {
+            final String trimmed = entry.trim();
+            if (trimmed.length() == 0) {
+                continue;
+            } else if (trimmed.endsWith(WILDCARD)) {
+                names.addAll(scan(trimmed.substring(0, trimmed.length() - WILDCARD.length())));
+            } else {
+                names.add(trimmed);
+            }
+        }
+
+        if (names.isEmpty()) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final Map<String, DispatchTable.Dispatch> dispatches = Maps.newHashMap();
+        for (String name : names) {
+            final DispatchTable.Dispatch dispatch = resolve(name);
+            if (dispatch != null) {
+                dispatches.put(dispatch.getClassName(), dispatch);
+            }
+        }
+        table = DispatchTable.of(dispatches);
+        LOG.info("Warmed up {} of {} commands in {}ms", new Object[] {
+            table.size(), names.size(), (System.nanoTime() - start) / 1000000
+        });
+    }
+
+    private DispatchTable.Dispatch resolve(String name) {
+        final Class<?> type;
+        try {
+            type = loader.getType(name);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unable to warm up unknown command {}", name);
+            return null;
+        } catch (ConfigurationException e) {
+            LOG.warn("Unable to resolve " + name + " during warmup", e);
+            return null;
+        } catch (ProvisionException e) {
+            LOG.warn("Unable to resolve " + name + " during warmup", e);
+            return null;
+        }
+
+        final DispatchTable.Kind kind;
+        if (!isConcrete(type)) {
+            LOG.debug("Skipping {}, it can't be instantiated", type);
+            return null;
+        } else if (IpcCommand.class.isAssignableFrom(type)) {
+            kind = DispatchTable.Kind.COMMAND;
+        } else if (Job.class.isAssignableFrom(type)) {
+            kind = DispatchTable.Kind.JOB;
+        } else {
+            LOG.debug("Skipping {}, it is neither a command nor a job", type);
+            return null;
+        }
+
+        final Provider<?> provider;
+        try {
+            // creates the just-in-time binding without creating an instance
+            provider = injector.getBinding(type).getProvider();
+        } catch (ConfigurationException e) {
+            LOG.warn("Unable to bind " + type + " during warmup", e);
+            return null;
+        }
+        return new DispatchTable.Dispatch(kind, type, provider);
+    }
+
+    private boolean isConcrete(Class<?> type) {
+        return !type.isInterface() && !Modifier.isAbstract(type.getModifiers());
+    }
+
+    /**
+     * Checks whether the named class is a concrete command or job, without initializing it.
+     */
+    private boolean isCandidate(String name, ClassLoader classLoader) {
+        final Class<?> type;
+        try {
+            type = Class.forName(name, false, classLoader);
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            LOG.debug("Unable to load " + name, e);
+            return false;
+        }
+        return isConcrete(type) && (IpcCommand.class.isAssignableFrom(type) || Job.class.isAssignableFrom(type));
+    }
+
+    /**
+     * Lists the names of all concrete top level commands and jobs in the given package
+     * and its sub packages.
+     */
+    private Set<String> scan(String packageName) {
+        final Set<String> names = Sets.newTreeSet();
+        final String path = packageName.replace('.', '/');
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            final Enumeration<URL> resources = classLoader.getResources(path);
+            while (resources.hasMoreElements()) {
+                final URL url = resources.nextElement();
+                if ("file".equals(url.getProtocol())) {
+                    scan(new File(URLDecoder.decode(url.getPath(), "UTF-8")), packageName, names);
+                } else if ("jar".equals(url.getProtocol())) {
+                    final JarFile jar = JarURLConnection.class.cast(url.openConnection()).getJarFile();
+                    scan(jar, path, names);
+                } else {
+                    LOG.warn("Unable to scan {}", url);
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        } catch (IOException e) {
+            LOG.warn("Unable to scan package " + packageName, e);
+        }
+        final Iterator<String> iterator = names.iterator();
+        while (iterator.hasNext()) {
+            if (!isCandidate(iterator.next(), classLoader)) {
+                iterator.remove();
+            }
+        }
+        LOG.debug("Found {} commands in {}", names.size(), packageName);
+        return names;
+    }
+
+    private void scan(File directory, String packageName, Set<String> names) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (file.isDirectory()) {
+                scan(file, packageName + "." + name, names);
+            } else if (isTopLevelClass(name)) {
+                names.add(packageName + "." + name.substring(0, name.length() - CLASS_SUFFIX.length()));
+            }
+        }
+    }
+
+    private void scan(JarFile jar, String path, Set<String> names) {
+        final Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            final String name = entries.nextElement().getName();
+            if (name.startsWith(path + "/") && isTopLevelClass(name)) {
+                names.add(name.substring(0, name.length() - CLASS_SUFFIX.length()).replace('/', '.'));
+            }
+        }
+    }
+
+    private boolean isTopLevelClass(String name) {
+        return name.endsWith(CLASS_SUFFIX) && name.indexOf('$') == -1;
+    }
+
+    /**
+     * Provides the table of all commands which have been warmed up.
+     *
+     * @since 1.4
+     * @return the dispatch table, empty if warmup is disabled
+     */
+    public DispatchTable getTable() {
+        return table;
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.google.common.base.Charsets;
+
+/**
+ * An intern table which resolves raw command name bytes to {@link String}s
+ * without allocating once a name has been seen.
+ *
+ * <p>
+ *   The table uses open addressing with a bounded number of probes. A name whose
+ *   probes only find other names replaces one of them, picked by its hash. Names
+ *   sent once, by clients sending arbitrary garbage for example, therefore never
+ *   fill the table for good, they are overwritten by the names which keep coming.
+ *   Entries are replaced but never removed, so a lookup may stop at the first
+ *   empty slot.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+final class NameTable {
+
+    private static final int CAPACITY = 2048;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private static final int MAX_PROBES = 8;
+
+    private static final int MAX_NAME_LENGTH = 256;
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(CAPACITY);
+
+    /**
+     * Resolves the name stored in the specified region of the given buffer.
+     * Neither the reader nor the writer index of the buffer are modified.
+     *
+     * @since 1.4
+     * @param buffer the buffer holding the raw name
+     * @param index the absolute index of the first byte
+     * @param length the number of bytes
+     * @return the decoded name
+     */
+    public String get(ChannelBuffer buffer, int index, int length) {
+        if (length > MAX_NAME_LENGTH) {
+            return buffer.toString(index, length, Charsets.UTF_8);
+        }
+
+        final int hash = hash(buffer, index, length);
+        final int home = hash & MASK;
+
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            final int slot = (home + probe) & MASK;
+            final Entry entry = entries.get(slot);
+            if (entry == null) {
+                return insert(slot, null, hash, buffer, index, length);
+            } else if (entry.hash == hash && entry.matches(buffer, index, length)) {
+                return entry.value;
+            }
+        }
+
+        // every probed slot is taken, the upper bits of the hash pick one to replace
+        final int victim = (home + ((hash >>> 24) & (MAX_PROBES - 1))) & MASK;
+        return insert(victim, entries.get(victim), hash, buffer, index, length);
+    }
+
+    private String insert(int slot, Entry expected, int hash, ChannelBuffer buffer, int index, int length) {
+        final byte[] bytes = new byte[length];
+        buffer.getBytes(index, bytes);
+        final String value = new String(bytes, Charsets.UTF_8);
+
+        // losing a race just means this name is not interned (yet)
+        entries.compareAndSet(slot, expected, new Entry(hash, bytes, value));
+        return value;
+    }
+
+    private static int hash(ChannelBuffer buffer, int index, int length) {
+        int hash = 1;
+        for (int i = index; i < index + length; i++) {
+            hash = 31 * hash + buffer.getByte(i);
+        }
+        // spread the lower bits a little, consecutive names tend to share prefixes
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A single immutable table entry.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class Entry {
+
+        private final int hash;
+
+        private final byte[] bytes;
+
+        private final String value;
+
+        public Entry(int hash, byte[] bytes, String value) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.value = value;
+        }
+
+        public boolean matches(ChannelBuffer buffer, int index, int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != buffer.getByte(index + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
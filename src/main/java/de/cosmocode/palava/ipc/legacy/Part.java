@@ -39,6 +39,10 @@ enum Part {
     
     FOURTH_SLASH, 
     
+    REQUEST_ID,
+    
+    FIFTH_SLASH,
+    
     LEFT_PARENTHESIS, 
     
     CONTENT_LENGTH,
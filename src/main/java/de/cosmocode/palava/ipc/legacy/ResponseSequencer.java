@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Writes the responses of one channel strictly in the order of the
+ * {@link LegacyHeader#getSequence() sequence} of their requests, no matter
+ * in which order the calls complete.
+ * 
+ * <p>
+ *   Multiplexed responses may {@link #writeNow(Channel, int, Object, ChannelFutureListener...) skip}
+ *   the queue. They still complete their slot, so ordered responses following them,
+ *   e.g. the one closing the connection, wait for them as well.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+final class ResponseSequencer {
+
+    /**
+     * Placeholder for responses which have already been written out of order.
+     */
+    private static final Response WRITTEN = new Response(null, null);
+
+    @GuardedBy("this")
+    private int next;
+
+    @GuardedBy("this")
+    private final Map<Integer, Response> pending = Maps.newHashMap();
+
+    /**
+     * Writes the given message as soon as all responses of the preceding
+     * requests have been written.
+     *
+     * @since 1.4
+     * @param channel the channel to write to
+     * @param sequence the sequence number of the request
+     * @param message the response
+     * @param listeners listeners which will be added to the write future
+     */
+    public synchronized void write(Channel channel, int sequence, Object message, ChannelFutureListener... listeners) {
+        if (sequence != next) {
+            pending.put(sequence, new Response(message, listeners));
+            return;
+        }
+
+        write(channel, new Response(message, listeners));
+        next++;
+        flush(channel);
+    }
+
+    /**
+     * Writes the given message immediately, regardless of any preceding responses
+     * which are still missing.
+     *
+     * @since 1.4
+     * @param channel the channel to write to
+     * @param sequence the sequence number of the request
+     * @param message the response
+     * @param listeners listeners which will be added to the write future
+     */
+    public synchronized void writeNow(Channel channel, int sequence, Object message,
+        ChannelFutureListener... listeners) {
+        write(channel, new Response(message, listeners));
+        if (sequence == next) {
+            next++;
+            flush(channel);
+        } else {
+            pending.put(sequence, WRITTEN);
+        }
+    }
+
+    private void flush(Channel channel) {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        while (true) {
+            final Response response = pending.remove(next);
+            if (response == null) {
+                break;
+            } else if (response != WRITTEN) {
+                write(channel, response);
+            }
+            next++;
+        }
+    }
+
+    private void write(Channel channel, Response response) {
+        final ChannelFuture future = channel.write(response.message);
+        for (ChannelFutureListener listener : response.listeners) {
+            future.addListener(listener);
+        }
+    }
+
+    /**
+     * A response waiting for its predecessors.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class Response {
+
+        private final Object message;
+
+        private final ChannelFutureListener[] listeners;
+
+        public Response(Object message, ChannelFutureListener[] listeners) {
+            this.message = message;
+            this.listeners = listeners;
+        }
+
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A temporary file which receives the content of an oversized frame while it arrives,
+ * so the content never has to be buffered on the heap as a whole.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@NotThreadSafe
+final class SpillFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpillFile.class);
+
+    private final File file;
+
+    private final int length;
+
+    private FileChannel channel;
+
+    private int written;
+
+    private ByteBuffer mapped;
+
+    private SpillFile(File file, int length) throws IOException {
+        this.file = file;
+        this.length = length;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    /**
+     * Creates a new temporary spill file.
+     *
+     * @since 1.4
+     * @param length the number of bytes this file will receive
+     * @return a new spill file
+     * @throws IOException if creating the file failed
+     */
+    public static SpillFile create(int length) throws IOException {
+        final File file = File.createTempFile("palava-legacy-", ".spill");
+        LOG.debug("Spilling {} bytes to {}", length, file);
+        return new SpillFile(file, length);
+    }
+
+    /**
+     * Transfers as many readable bytes as still required from the given buffer
+     * into this file.
+     *
+     * @since 1.4
+     * @param buffer the source buffer, its reader index will be advanced
+     * @throws IOException if writing failed
+     */
+    public void write(ChannelBuffer buffer) throws IOException {
+        Preconditions.checkState(channel != null, "%s is already complete", this);
+        int remaining = Math.min(buffer.readableBytes(), length - written);
+        while (remaining > 0) {
+            final int transferred = buffer.readBytes(channel, remaining);
+            written += transferred;
+            remaining -= transferred;
+        }
+        if (isComplete()) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    public boolean isComplete() {
+        return written == length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Maps the complete file read-only into memory. The mapping is created only once.
+     *
+     * @since 1.4
+     * @return the mapped content
+     * @throws IllegalStateException if this file is not yet complete or mapping failed
+     */
+    public ByteBuffer map() {
+        Preconditions.checkState(isComplete(), "%s is not yet complete", this);
+        if (mapped == null) {
+            final RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(file, "r");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            try {
+                mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                close(raf);
+            }
+        }
+        return mapped.duplicate();
+    }
+
+    /**
+     * Opens a new {@link FileChannel} backed stream of the content.
+     *
+     * @since 1.4
+     * @return a new input stream
+     * @throws IllegalStateException if this file is not yet complete or could not be opened
+     */
+    public InputStream openStream() {
+        Preconditions.checkState(isComplete(), "%s is not yet complete", this);
+        try {
+            return Channels.newInputStream(new FileInputStream(file).getChannel());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Closes and deletes this file. Subsequent calls have no effect.
+     *
+     * @since 1.4
+     */
+    public void delete() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close " + file, e);
+            }
+            channel = null;
+        }
+        mapped = null;
+        if (file.exists() && !file.delete()) {
+            LOG.warn("Unable to delete {}", file);
+        }
+    }
+
+    private void close(RandomAccessFile raf) {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            LOG.warn("Unable to close " + file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SpillFile [file=%s, length=%s, written=%s]", file, length, written);
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.json.JSONException;
+import org.json.JSONString;
+import org.json.JSONWriter;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.bridge.Content;
+import de.cosmocode.palava.bridge.MimeType;
+import de.cosmocode.palava.bridge.content.JsonContent;
+
+/**
+ * A json {@link Content} which serializes its result straight into a {@link ChannelBuffer}
+ * instead of building a string and a byte array first.
+ *
+ * <p>
+ *   The serialized json is preceded by {@link #RESERVED} unused bytes. The
+ *   {@link LegacyContentEncoder} writes the protocol prefix, which depends on the
+ *   content length, into this space once serialization is done, so the complete
+ *   response is sent from one buffer without any further copy.
+ * </p>
+ *
+ * <p>
+ *   Only strings, booleans, integral numbers, null, {@link #raw(String) raw json},
+ *   collections and maps with string keys are written here. Results containing
+ *   anything else, whose rendering is up to {@link JsonContent}, are handed to a
+ *   {@link JsonContent} instead, so the response format never depends on which
+ *   of both has been used.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@NotThreadSafe
+@SuppressWarnings("deprecation")
+final class StreamingJsonContent implements Content {
+
+    /**
+     * Enough for {@code application/json://requestId/(length)?} with ten digit numbers.
+     */
+    static final int RESERVED = 64;
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * Older {@link JSONWriter}s fail above 20 levels.
+     */
+    private static final int MAX_DEPTH = 20;
+
+    // guarantees the exact mime type clients already get for json contents
+    static final MimeType MIME_TYPE = new JsonContent(Collections.<String, Object>emptyMap()).getMimeType();
+
+    private final ChannelBuffer buffer;
+
+    private StreamingJsonContent(ChannelBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Serializes the given result.
+     *
+     * @since 1.4
+     * @param result the result of a command
+     * @return a new streamed content or a {@link JsonContent} if result contains
+     *         values which can't be streamed
+     * @throws NullPointerException if result is null
+     * @throws JSONException if result can not be serialized
+     * @throws IOException if writing failed
+     */
+    public static Content of(Map<String, Object> result) throws JSONException, IOException {
+        Preconditions.checkNotNull(result, "Result");
+        final ChannelBuffer output = ChannelBuffers.dynamicBuffer(INITIAL_CAPACITY);
+        output.writerIndex(RESERVED);
+        output.readerIndex(RESERVED);
+        final Writer writer = new OutputStreamWriter(new ChannelBufferOutputStream(output), Charsets.UTF_8);
+        if (write(new JSONWriter(writer), result, 1)) {
+            writer.flush();
+            return new StreamingJsonContent(output);
+        } else {
+            return new JsonContent(result);
+        }
+    }
+
+    /**
+     * Writes the given value.
+     *
+     * @return false if value contains anything which has to be rendered by a {@link JsonContent}
+     */
+    private static boolean write(JSONWriter writer, Object value, int depth) throws JSONException {
+        if (value == null || value instanceof String || value instanceof Boolean || 
+            value instanceof Integer || value instanceof Long || 
+            value instanceof Short || value instanceof Byte || value instanceof RawJson) {
+            writer.value(value);
+            return true;
+        } else if (depth > MAX_DEPTH) {
+            return false;
+        } else if (value instanceof Map<?, ?>) {
+            writer.object();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!(entry.getKey() instanceof String)) {
+                    return false;
+                }
+                writer.key(String.class.cast(entry.getKey()));
+                if (!write(writer, entry.getValue(), depth + 1)) {
+                    return false;
+                }
+            }
+            writer.endObject();
+            return true;
+        } else if (value instanceof Collection<?>) {
+            writer.array();
+            for (Object element : Collection.class.cast(value)) {
+                if (!write(writer, element, depth + 1)) {
+                    return false;
+                }
+            }
+            writer.endArray();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Wraps already serialized json, so it can be embedded into a result
+     * without being parsed again.
+     *
+     * @since 1.4
+     * @param json valid json
+     * @return a value which is written as is
+     * @throws NullPointerException if json is null
+     */
+    public static Object raw(String json) {
+        return new RawJson(json);
+    }
+
+    /**
+     * Provides the serialized json, preceded by {@link #RESERVED} writable bytes.
+     * The returned buffer shares its content with this content but has its own indices.
+     * Only the encoder may write into the reserved bytes, exactly once.
+     *
+     * @since 1.4
+     * @return a new view on the serialized json
+     */
+    public ChannelBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    @Override
+    public MimeType getMimeType() {
+        return MIME_TYPE;
+    }
+
+    public long getLength() {
+        return buffer.readableBytes();
+    }
+
+    public void write(OutputStream output) throws IOException {
+        buffer.getBytes(buffer.readerIndex(), output, buffer.readableBytes());
+    }
+
+    @Override
+    public byte[] getBytes() {
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StreamingJsonContent [length=%s]", buffer.readableBytes());
+    }
+
+    /**
+     * Already serialized json.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    @Immutable
+    private static final class RawJson implements JSONString {
+
+        private final String json;
+
+        public RawJson(String json) {
+            this.json = Preconditions.checkNotNull(json, "Json");
+        }
+
+        @Override
+        public String toJSONString() {
+            return json;
+        }
+
+    }
+
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * An {@link java.util.concurrent.Executor} which starts a new thread for every
+ * burst of channel events instead of borrowing one from a pool. If ordered, events
+ * of the same channel are executed one after another, in the order they were submitted.
+ * Otherwise every event gets its own thread. The queue of a channel is forgotten
+ * as soon as the channel has been closed.
+ * 
+ * <p>
+ *   Combined with virtual threads this removes the need to size a pool for
+ *   commands which mostly block on I/O.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@ThreadSafe
+final class ThreadPerCallExecutor implements java.util.concurrent.Executor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ThreadPerCallExecutor.class);
+
+    private final ThreadFactory factory;
+
+    private final boolean ordered;
+
+    private final ConcurrentMap<Channel, ChildExecutor> children = Maps.newConcurrentMap();
+
+    public ThreadPerCallExecutor(ThreadFactory factory, boolean ordered) {
+        this.factory = Preconditions.checkNotNull(factory, "Factory");
+        this.ordered = ordered;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (ordered && task instanceof ChannelEventRunnable) {
+            final Channel channel = ChannelEventRunnable.class.cast(task).getEvent().getChannel();
+            getChild(channel).execute(task);
+        } else {
+            factory.newThread(task).start();
+        }
+    }
+
+    private ChildExecutor getChild(final Channel channel) {
+        final ChildExecutor child = children.get(channel);
+        if (child == null) {
+            final ChildExecutor created = new ChildExecutor();
+            final ChildExecutor existing = children.putIfAbsent(channel, created);
+            if (existing == null) {
+                // closed events may never pass through here, they are handled on the I/O thread
+                channel.getCloseFuture().addListener(new ChannelFutureListener() {
+
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        children.remove(channel, created);
+                    }
+
+                });
+                return created;
+            } else {
+                return existing;
+            }
+        } else {
+            return child;
+        }
+    }
+
+    /**
+     * Provides the number of channels whose events are currently ordered.
+     *
+     * @since 1.4
+     * @return the number of open channels this executor keeps a queue for
+     */
+    int getChildCount() {
+        return children.size();
+    }
+
+    /**
+     * Creates a factory for virtual threads. An unbounded number of platform threads
+     * is never an option, so there is no fallback in here.
+     *
+     * @since 1.4
+     * @return a new thread factory or null if the running JVM does not support virtual threads
+     */
+    static ThreadFactory newVirtualThreadFactory() {
+        try {
+            // reflection keeps this module compatible with older JVMs
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object named = builderType.getMethod("name", String.class, long.class).invoke(
+                builder, "legacy-virtual-", 0L
+            );
+            return (ThreadFactory) builderType.getMethod("factory").invoke(named);
+        /* CHECKSTYLE:OFF */
+        } catch (Exception e) {
+        /* CHECKSTYLE:ON */
+            LOG.debug("Virtual threads are not supported by this JVM", e);
+            return null;
+        }
+    }
+
+    /**
+     * Serializes the events of a single channel.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private final class ChildExecutor implements Runnable {
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (running.compareAndSet(false, true)) {
+                factory.newThread(this).start();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Runnable task = tasks.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    process(ChannelEventRunnable.class.cast(task));
+                }
+            } finally {
+                running.set(false);
+            }
+            // a task may have been added after the last poll
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void process(ChannelEventRunnable task) {
+            try {
+                task.run();
+            /* CHECKSTYLE:OFF */
+            } catch (RuntimeException e) {
+            /* CHECKSTYLE:ON */
+                LOG.error("Uncaught exception while processing " + task.getEvent(), e);
+            }
+        }
+
+    }
+
+}
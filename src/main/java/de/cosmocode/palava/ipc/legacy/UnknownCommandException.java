@@ -0,0 +1,40 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+/**
+ * Signals that a command name could not be resolved to a class. Unknown names are
+ * a client error which is raised frequently, so this exception does not capture
+ * a stack trace.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+final class UnknownCommandException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = -4123873406383641729L;
+
+    public UnknownCommandException(String name) {
+        super("Unknown command " + name);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+}
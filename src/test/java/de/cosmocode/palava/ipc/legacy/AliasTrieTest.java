@@ -0,0 +1,132 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.palava.bridge.command.Alias;
+
+/**
+ * Tests {@link AliasTrie}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@SuppressWarnings("deprecation")
+public final class AliasTrieTest {
+
+    private final Alias shop = new PrefixAlias("shop", "com.example.shop");
+
+    private final Alias shopAdmin = new PrefixAlias("shop.admin", "com.example.admin");
+
+    private final Alias store = new PrefixAlias("store", "com.example.store");
+
+    private final AliasTrie trie = AliasTrie.of(Arrays.asList(store, shop, shopAdmin));
+
+    /**
+     * Tests the size.
+     */
+    @Test
+    public void size() {
+        Assert.assertEquals(3, trie.size());
+        Assert.assertEquals(0, AliasTrie.of(Collections.<Alias>emptyList()).size());
+    }
+
+    /**
+     * Tests that the longest matching prefix wins.
+     */
+    @Test
+    public void longestPrefix() {
+        Assert.assertSame(shop, trie.find("shop.Order"));
+        Assert.assertSame(shopAdmin, trie.find("shop.admin.Users"));
+        Assert.assertSame(shopAdmin, trie.find("shop.admin"));
+        Assert.assertSame(shop, trie.find("shop.adm"));
+        Assert.assertSame(store, trie.find("store.Stock"));
+    }
+
+    /**
+     * Tests names without a matching alias.
+     */
+    @Test
+    public void noMatch() {
+        Assert.assertNull(trie.find("sho"));
+        Assert.assertNull(trie.find("com.example.shop.Order"));
+        Assert.assertNull(trie.find(""));
+        Assert.assertNull(AliasTrie.of(Collections.<Alias>emptyList()).find("shop"));
+    }
+
+    /**
+     * Tests that the first of multiple aliases sharing a name wins.
+     */
+    @Test
+    public void firstWins() {
+        final Alias other = new PrefixAlias("shop", "com.example.other");
+        Assert.assertSame(shop, AliasTrie.of(Arrays.asList(shop, other)).find("shop.Order"));
+        Assert.assertSame(other, AliasTrie.of(Arrays.asList(other, shop)).find("shop.Order"));
+    }
+
+    /**
+     * Tests that an empty alias name matches every name.
+     */
+    @Test
+    public void emptyName() {
+        final Alias fallback = new PrefixAlias("", "com.example");
+        final AliasTrie withFallback = AliasTrie.of(Arrays.asList(fallback, shop));
+        Assert.assertSame(fallback, withFallback.find("Other"));
+        Assert.assertSame(fallback, withFallback.find(""));
+        Assert.assertSame(shop, withFallback.find("shop.Order"));
+    }
+
+    /**
+     * A simple alias which replaces its name with a package.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class PrefixAlias implements Alias {
+
+        private final String name;
+
+        private final String packageName;
+
+        public PrefixAlias(String name, String packageName) {
+            this.name = name;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String apply(String aliasedName) {
+            return packageName + aliasedName.substring(name.length());
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + packageName;
+        }
+
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Assume;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A minimal harness for the micro benchmarks of this module. It measures the time
+ * and the heap allocated by the current thread per operation, after a warmup.
+ *
+ * <p>
+ *   Benchmarks are skipped during regular builds. Run them with
+ *   {@code mvn test -Dtest=*Benchmark -Dlegacy.benchmark=true}. Results are logged,
+ *   they depend on the machine and are never asserted.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+final class Benchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Benchmark.class);
+
+    private static final String ENABLED = "legacy.benchmark";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private Benchmark() {
+
+    }
+
+    /**
+     * Skips the calling test unless benchmarks have been enabled.
+     *
+     * @since 1.4
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean(ENABLED));
+    }
+
+    /**
+     * Runs the given operation a number of times, first to warm up and then to measure,
+     * and logs the average time and allocated bytes per operation.
+     *
+     * @since 1.4
+     * @param name the name of the measurement
+     * @param iterations the number of measured invocations
+     * @param operation the operation
+     * @return the average number of bytes allocated per operation or -1 if the jvm can't tell
+     * @throws Exception if the operation failed
+     */
+    static long measure(String name, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        System.gc();
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        final long nanos = System.nanoTime() - start;
+        final long allocated = allocatedBefore == -1 ? -1 : (allocatedBytes() - allocatedBefore) / iterations;
+        LOG.info("{}: {} ns/op, {} bytes/op", new Object[] {
+            name, nanos / iterations, allocated
+        });
+        return allocated;
+    }
+
+    /**
+     * Logs a single result.
+     *
+     * @since 1.4
+     * @param name the name of the measurement
+     * @param value the value
+     * @param unit the unit of value
+     */
+    static void report(String name, Object value, String unit) {
+        LOG.info("{}: {} {}", new Object[] {
+            name, value, unit
+        });
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A single benchmarked operation.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    interface Operation {
+
+        /**
+         * Runs the operation once.
+         *
+         * @throws Exception if the operation failed
+         */
+        void run() throws Exception;
+
+    }
+
+}
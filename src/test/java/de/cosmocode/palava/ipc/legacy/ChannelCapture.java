@@ -0,0 +1,53 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+/**
+ * Captures the channel of a codec embedder, which fires the open event while
+ * it is being constructed. Can be used with decoder and encoder embedders.
+ * Completes every write which passes, the embedder itself never does.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+final class ChannelCapture extends SimpleChannelHandler {
+
+    private Channel channel;
+
+    @Override
+    public void channelOpen(ChannelHandlerContext context, ChannelStateEvent event) throws Exception {
+        channel = event.getChannel();
+        super.channelOpen(context, event);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext context, MessageEvent event) throws Exception {
+        super.writeRequested(context, event);
+        event.getFuture().setSuccess();
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+}
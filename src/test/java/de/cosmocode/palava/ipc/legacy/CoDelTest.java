@@ -0,0 +1,96 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link AdmissionHandler.CoDel}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class CoDelTest {
+
+    private static final long TARGET = 5;
+
+    private static final long INTERVAL = 100;
+
+    private final AdmissionHandler.CoDel codel = new AdmissionHandler.CoDel(TARGET, INTERVAL);
+
+    /**
+     * Tests that nothing is dropped below the target, no matter how long.
+     */
+    @Test
+    public void belowTarget() {
+        for (long now = 1; now < 10 * INTERVAL; now++) {
+            Assert.assertFalse(codel.shouldDrop(now, TARGET - 1));
+        }
+    }
+
+    /**
+     * Tests that a single long queue time is no reason to drop, the queue is not a standing one yet.
+     */
+    @Test
+    public void noHardTimeout() {
+        Assert.assertFalse(codel.shouldDrop(1, 50 * INTERVAL));
+        Assert.assertFalse(codel.shouldDrop(2, TARGET - 1));
+        Assert.assertFalse(codel.shouldDrop(3, 50 * INTERVAL));
+    }
+
+    /**
+     * Tests that dropping starts once the queue time stayed above the target for a whole interval.
+     */
+    @Test
+    public void standingQueue() {
+        Assert.assertFalse(codel.shouldDrop(1, TARGET));
+        Assert.assertFalse(codel.shouldDrop(50, TARGET));
+        Assert.assertFalse(codel.shouldDrop(INTERVAL, TARGET));
+        Assert.assertTrue(codel.shouldDrop(INTERVAL + 1, TARGET));
+    }
+
+    /**
+     * Tests that the time between two drops shrinks with the square root of the drop count.
+     */
+    @Test
+    public void controlLaw() {
+        codel.shouldDrop(0, TARGET);
+        Assert.assertTrue(codel.shouldDrop(INTERVAL, TARGET));
+        // next drop after interval / sqrt(1)
+        Assert.assertFalse(codel.shouldDrop(2 * INTERVAL - 1, TARGET));
+        Assert.assertTrue(codel.shouldDrop(2 * INTERVAL, TARGET));
+        // next drop after interval / sqrt(2)
+        final long next = 2 * INTERVAL + (long) (INTERVAL / Math.sqrt(2));
+        Assert.assertFalse(codel.shouldDrop(next - 1, TARGET));
+        Assert.assertTrue(codel.shouldDrop(next, TARGET));
+    }
+
+    /**
+     * Tests that a queue time below the target ends the dropping state.
+     */
+    @Test
+    public void drained() {
+        codel.shouldDrop(0, TARGET);
+        Assert.assertTrue(codel.shouldDrop(INTERVAL, TARGET));
+        Assert.assertFalse(codel.shouldDrop(INTERVAL + 1, TARGET - 1));
+        Assert.assertFalse(codel.shouldDrop(3 * INTERVAL, TARGET));
+        Assert.assertFalse(codel.shouldDrop(4 * INTERVAL - 1, TARGET));
+        Assert.assertTrue(codel.shouldDrop(4 * INTERVAL, TARGET));
+    }
+
+}
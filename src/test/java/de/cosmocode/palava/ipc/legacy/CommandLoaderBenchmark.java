@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import de.cosmocode.palava.bridge.command.Alias;
+
+/**
+ * Measures the per call cost of resolving a command through the cached
+ * {@link LegacyCommandLoader} against loading the class and asking the
+ * injector on every call, as it has been done before.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@SuppressWarnings("deprecation")
+public final class CommandLoaderBenchmark {
+
+    private static final int ITERATIONS = 1000000;
+
+    private static final String NAME = Command.class.getName();
+
+    private final Injector injector = Guice.createInjector();
+
+    /**
+     * Skips unless benchmarks are enabled.
+     */
+    @Before
+    public void enabled() {
+        Benchmark.assumeEnabled();
+    }
+
+    /**
+     * Compares uncached and cached resolution.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void load() throws Exception {
+        Benchmark.measure("Class.forName and Injector.getInstance", ITERATIONS, new Benchmark.Operation() {
+
+            @Override
+            public void run() throws Exception {
+                injector.getInstance(Class.forName(NAME));
+            }
+
+        });
+
+        final LegacyCommandLoader loader = new LegacyCommandLoader(
+            injector, Collections.<Alias>emptySet(), new LegacyStatistics()
+        );
+        Benchmark.measure("LegacyCommandLoader.load", ITERATIONS, new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                loader.load(NAME);
+            }
+
+        });
+    }
+
+    /**
+     * A command without dependencies.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    public static final class Command {
+
+    }
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the allocation per call of the {@link CompactMap} behind the
+ * {@link CompactScopeContext} against the {@link ConcurrentHashMap} every call
+ * allocated before.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class CompactMapBenchmark {
+
+    private static final int ITERATIONS = 1000000;
+
+    /**
+     * Skips unless benchmarks are enabled.
+     */
+    @Before
+    public void enabled() {
+        Benchmark.assumeEnabled();
+    }
+
+    /**
+     * The typical call scope: created, one or two entries, read once.
+     */
+    private static Object use(Map<Object, Object> context, int entries) {
+        for (int i = 0; i < entries; i++) {
+            context.put(Integer.valueOf(i), Boolean.TRUE);
+        }
+        return context.get(Integer.valueOf(0));
+    }
+
+    /**
+     * Compares both maps with zero, one and two entries.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void scopeContext() throws Exception {
+        for (final int entries : new int[] {0, 1, 2}) {
+            Benchmark.measure("ConcurrentHashMap with " + entries + " entries", ITERATIONS, new Benchmark.Operation() {
+
+                @Override
+                public void run() {
+                    use(new ConcurrentHashMap<Object, Object>(), entries);
+                }
+
+            });
+            Benchmark.measure("CompactMap with " + entries + " entries", ITERATIONS, new Benchmark.Operation() {
+
+                @Override
+                public void run() {
+                    use(new CompactMap<Object, Object>(), entries);
+                }
+
+            });
+        }
+    }
+
+}
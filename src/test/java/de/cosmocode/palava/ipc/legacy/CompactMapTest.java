@@ -0,0 +1,179 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link CompactMap}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class CompactMapTest {
+
+    private final Map<String, Integer> map = new CompactMap<String, Integer>();
+
+    private final Map<String, Integer> expected = new HashMap<String, Integer>();
+
+    private void put(String key, Integer value) {
+        Assert.assertEquals(expected.put(key, value), map.put(key, value));
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(map, expected);
+        Assert.assertEquals(expected.hashCode(), map.hashCode());
+    }
+
+    private void remove(String key) {
+        Assert.assertEquals(expected.remove(key), map.remove(key));
+        Assert.assertEquals(expected, map);
+    }
+
+    /**
+     * Tests an empty map.
+     */
+    @Test
+    public void empty() {
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertNull(map.get("key"));
+        Assert.assertNull(map.remove("key"));
+        Assert.assertFalse(map.containsKey("key"));
+        Assert.assertFalse(map.entrySet().iterator().hasNext());
+    }
+
+    /**
+     * Tests puts, replacements and removals in the array representation.
+     */
+    @Test
+    public void small() {
+        put("a", 1);
+        put("b", 2);
+        put("c", 3);
+        put("b", 4);
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals(Integer.valueOf(4), map.get("b"));
+        remove("a");
+        remove("a");
+        Assert.assertEquals(Integer.valueOf(3), map.get("c"));
+        put("d", 5);
+        remove("c");
+        remove("b");
+        remove("d");
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    /**
+     * Tests null keys and values.
+     */
+    @Test
+    public void nulls() {
+        put(null, 1);
+        put("a", null);
+        Assert.assertTrue(map.containsKey(null));
+        Assert.assertTrue(map.containsKey("a"));
+        Assert.assertEquals(Integer.valueOf(1), map.get(null));
+        remove(null);
+        Assert.assertFalse(map.containsKey(null));
+    }
+
+    /**
+     * Tests that growing beyond the threshold keeps all entries.
+     */
+    @Test
+    public void inflate() {
+        for (int i = 0; i < 20; i++) {
+            put("key" + i, i);
+        }
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(Integer.valueOf(i), map.get("key" + i));
+        }
+        for (int i = 0; i < 20; i += 2) {
+            remove("key" + i);
+        }
+        put("key1", -1);
+        Assert.assertEquals(10, map.size());
+    }
+
+    /**
+     * Tests removals through the entry set iterator.
+     */
+    @Test
+    public void iteratorRemove() {
+        for (int i = 0; i < 6; i++) {
+            put("key" + i, i);
+        }
+        final Iterator<Map.Entry<String, Integer>> iterator = map.entrySet().iterator();
+        int visited = 0;
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Integer> entry = iterator.next();
+            visited++;
+            if (entry.getValue() % 2 == 0) {
+                iterator.remove();
+                expected.remove(entry.getKey());
+            }
+        }
+        Assert.assertEquals(6, visited);
+        Assert.assertEquals(expected, map);
+    }
+
+    /**
+     * Tests that removing without a current entry fails.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void iteratorRemoveTwice() {
+        put("a", 1);
+        final Iterator<Map.Entry<String, Integer>> iterator = map.entrySet().iterator();
+        iterator.next();
+        iterator.remove();
+        iterator.remove();
+    }
+
+    /**
+     * Tests that entries write through.
+     */
+    @Test
+    public void setValue() {
+        put("a", 1);
+        put("b", 2);
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            Assert.assertEquals(entry.getValue(), entry.setValue(entry.getValue() * 10));
+            expected.put(entry.getKey(), entry.getValue());
+        }
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(Integer.valueOf(20), map.get("b"));
+    }
+
+    /**
+     * Tests clear.
+     */
+    @Test
+    public void clear() {
+        for (int i = 0; i < 20; i++) {
+            put("key" + i, i);
+        }
+        map.clear();
+        expected.clear();
+        Assert.assertTrue(map.isEmpty());
+        put("a", 1);
+        Assert.assertEquals(1, map.size());
+    }
+
+}
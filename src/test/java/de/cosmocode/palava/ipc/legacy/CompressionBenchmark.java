@@ -0,0 +1,110 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Measures time and size on the wire of a large result encoded by the
+ * {@link LegacyContentEncoder} with the different compression levels.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class CompressionBenchmark {
+
+    private static final int ITERATIONS = 2000;
+
+    private final Map<String, Object> result = Maps.newLinkedHashMap();
+
+    /**
+     * Skips unless benchmarks are enabled and creates a result of roughly 300 kb.
+     */
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+        final List<Object> rows = Lists.newArrayList();
+        for (int i = 0; i < 3000; i++) {
+            final Map<String, Object> row = Maps.newLinkedHashMap();
+            row.put("id", i);
+            row.put("name", "Row number " + i);
+            row.put("active", i % 2 == 0);
+            row.put("score", i * 0.25);
+            rows.add(row);
+        }
+        result.put("rows", rows);
+    }
+
+    private static Channel channelOf(LegacyContentEncoder encoder) {
+        final ChannelCapture capture = new ChannelCapture();
+        new EncoderEmbedder<ChannelBuffer>(encoder, capture);
+        return capture.getChannel();
+    }
+
+    /**
+     * Compares time and size on the wire of the compression levels against
+     * the uncompressed response.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void levels() throws Exception {
+        final LegacyContentEncoder plain = new LegacyContentEncoder();
+        final Channel uncompressed = channelOf(plain);
+        final int size = plain.encode(uncompressed, StreamingJsonContent.of(result), -1).readableBytes();
+        Benchmark.report("Uncompressed", size, "bytes on the wire");
+        Benchmark.measure("Uncompressed", ITERATIONS, new Benchmark.Operation() {
+
+            @Override
+            public void run() throws Exception {
+                plain.encode(uncompressed, StreamingJsonContent.of(result), -1);
+            }
+
+        });
+
+        for (int level : new int[] {1, 6, 9}) {
+            final LegacyContentEncoder encoder = new LegacyContentEncoder();
+            encoder.setCompressionThreshold(0);
+            encoder.setCompressionLevel(level);
+            final Channel channel = channelOf(encoder);
+            encoder.setCompressing(channel);
+
+            final String name = "Compression level " + level;
+            Benchmark.report(name, encoder.encode(channel, StreamingJsonContent.of(result), -1).readableBytes(),
+                "bytes on the wire");
+            Benchmark.measure(name, ITERATIONS, new Benchmark.Operation() {
+
+                @Override
+                public void run() throws Exception {
+                    encoder.encode(channel, StreamingJsonContent.of(result), -1);
+                }
+
+            });
+        }
+    }
+
+}
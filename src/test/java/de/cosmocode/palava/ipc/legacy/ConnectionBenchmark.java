@@ -0,0 +1,273 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Defaults;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.spi.InjectionListener;
+import com.google.inject.spi.TypeEncounter;
+import com.google.inject.spi.TypeListener;
+
+import de.cosmocode.palava.core.Registry;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.Current;
+import de.cosmocode.palava.ipc.IpcCallCreateEvent;
+import de.cosmocode.palava.ipc.IpcCallDestroyEvent;
+import de.cosmocode.palava.ipc.IpcCallScope;
+import de.cosmocode.palava.ipc.IpcCommand;
+import de.cosmocode.palava.ipc.IpcCommandExecutor;
+import de.cosmocode.palava.ipc.IpcConnectionCreateEvent;
+import de.cosmocode.palava.ipc.IpcConnectionDestroyEvent;
+import de.cosmocode.palava.ipc.IpcSession;
+import de.cosmocode.palava.ipc.IpcSessionProvider;
+
+/**
+ * Measures the throughput of whole connections, each connected, opened, used for a
+ * single json call and closed again, through the complete {@link Legacy} pipeline
+ * served over netty's in-VM transport.
+ *
+ * <p>
+ *   Only the collaborators outside of this module are replaced: sessions, events,
+ *   the call scope and the command executor do nothing. Only the pipeline is
+ *   used, so the benchmark runs against every version of this module.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class ConnectionBenchmark {
+
+    private static final int ITERATIONS = 50000;
+
+    private static final String ARGUMENTS = "{\"REMOTE_ADDR\":\"127.0.0.1\"}";
+
+    private static final byte[] OPEN = frame("open", "", ARGUMENTS);
+
+    /**
+     * The command executor is a stand-in, so the interface itself is bound and called.
+     */
+    private static final byte[] CALL = frame("json", IpcCommand.class.getName(), "{}");
+
+    private static final byte[] CLOSE = frame("close", "", "");
+
+    private static final LocalAddress ADDRESS = new LocalAddress("legacy-benchmark");
+
+    private Injector injector;
+
+    private ServerBootstrap server;
+
+    private Channel serverChannel;
+
+    private ClientBootstrap client;
+
+    /**
+     * Skips unless benchmarks are enabled and creates the injector.
+     */
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+        injector = Guice.createInjector(new LegacyNettyModule(), new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bindListener(Matchers.any(), new Lifecycle());
+
+                final IpcSession session = stub(IpcSession.class, ImmutableMap.<String, Object>of(
+                    "getSessionId", "session"
+                ));
+                bind(IpcSession.class).annotatedWith(Current.class).toInstance(session);
+                bind(IpcSessionProvider.class).toInstance(stub(IpcSessionProvider.class,
+                    ImmutableMap.<String, Object>of("getSession", session)));
+                bind(IpcCommandExecutor.class).toInstance(stub(IpcCommandExecutor.class,
+                    ImmutableMap.<String, Object>of("execute", Collections.singletonMap("status", "ok"))));
+                bind(IpcCommand.class).toInstance(stub(IpcCommand.class, ImmutableMap.<String, Object>of()));
+                bind(IpcCallScope.class).toInstance(stub(IpcCallScope.class, ImmutableMap.<String, Object>of()));
+
+                final Map<String, Object> none = ImmutableMap.of();
+                bind(IpcConnectionCreateEvent.class).annotatedWith(Registry.Proxy.class).toInstance(
+                    stub(IpcConnectionCreateEvent.class, none));
+                bind(IpcConnectionDestroyEvent.class).annotatedWith(Registry.SilentProxy.class).toInstance(
+                    stub(IpcConnectionDestroyEvent.class, none));
+                bind(IpcCallCreateEvent.class).annotatedWith(Registry.Proxy.class).toInstance(
+                    stub(IpcCallCreateEvent.class, none));
+                bind(IpcCallDestroyEvent.class).annotatedWith(Registry.SilentProxy.class).toInstance(
+                    stub(IpcCallDestroyEvent.class, none));
+            }
+
+        });
+        server = new ServerBootstrap(new DefaultLocalServerChannelFactory());
+        server.setPipelineFactory(new ChannelPipelineFactory() {
+
+            @Override
+            public ChannelPipeline getPipeline() {
+                return injector.getInstance(Key.get(ChannelPipeline.class, Legacy.class));
+            }
+
+        });
+        serverChannel = server.bind(ADDRESS);
+        client = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+    }
+
+    /**
+     * Unbinds the server.
+     */
+    @After
+    public void tearDown() {
+        if (serverChannel != null) {
+            serverChannel.close().awaitUninterruptibly();
+            client.releaseExternalResources();
+            server.releaseExternalResources();
+        }
+    }
+
+    private static byte[] frame(String type, String name, String content) {
+        final byte[] bytes = content.getBytes(Charsets.UTF_8);
+        return (type + "://" + name + "/session/(" + bytes.length + ")?" + content).getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * Creates an implementation of the given interface which answers calls of the given
+     * methods with the given values and everything else with default values.
+     */
+    private static <T> T stub(final Class<T> type, final Map<String, Object> answers) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if (answers.containsKey(name)) {
+                    return answers.get(name);
+                } else if ("equals".equals(name)) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                } else if ("toString".equals(name)) {
+                    return type.getSimpleName();
+                } else {
+                    return Defaults.defaultValue(method.getReturnType());
+                }
+            }
+
+        }));
+    }
+
+    private void connection() {
+        final ChannelBuffer received = ChannelBuffers.dynamicBuffer();
+        client.setPipelineFactory(new ChannelPipelineFactory() {
+
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new SimpleChannelUpstreamHandler() {
+
+                    @Override
+                    public void messageReceived(ChannelHandlerContext context, MessageEvent event) {
+                        received.writeBytes(ChannelBuffer.class.cast(event.getMessage()));
+                    }
+
+                });
+            }
+
+        });
+        final Channel channel = client.connect(ADDRESS).awaitUninterruptibly().getChannel();
+        channel.write(ChannelBuffers.wrappedBuffer(OPEN));
+        channel.write(ChannelBuffers.wrappedBuffer(CALL));
+        channel.write(ChannelBuffers.wrappedBuffer(CLOSE));
+        // the server closes the connection once it answered all calls
+        channel.getCloseFuture().awaitUninterruptibly();
+        final String responses = received.toString(Charsets.UTF_8);
+        Assert.assertTrue(responses, responses.endsWith("\"ok\"}"));
+    }
+
+    /**
+     * Opens, calls and closes connections one after another.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void connectCallClose() throws Exception {
+        Benchmark.measure("Connect, call and close", ITERATIONS, new Benchmark.Operation() {
+
+            @Override
+            public void run() {
+                connection();
+            }
+
+        });
+    }
+
+    /**
+     * Initializes injected instances like the palava lifecycle does.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class Lifecycle implements TypeListener {
+
+        @Override
+        public <I> void hear(TypeLiteral<I> type, TypeEncounter<I> encounter) {
+            encounter.register(new InjectionListener<I>() {
+
+                @Override
+                public void afterInjection(I injectee) {
+                    if (injectee instanceof Initializable) {
+                        try {
+                            Initializable.class.cast(injectee).initialize();
+                        } catch (LifecycleException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+
+            });
+        }
+
+    }
+
+}
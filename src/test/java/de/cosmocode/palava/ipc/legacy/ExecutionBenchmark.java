@@ -0,0 +1,115 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the throughput of calls which mostly block, like commands waiting
+ * for a database, in the different {@link ExecutionMode}s.
+ *
+ * <p>
+ *   The {@link ExecutionMode#IO} mode is represented by a pool of as many threads
+ *   as netty uses for I/O by default, the {@link ExecutionMode#POOLED} mode by the
+ *   default of 16 worker threads.
+ * </p>
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class ExecutionBenchmark {
+
+    private static final int CALLS = 5000;
+
+    private static final long BLOCKING_MILLIS = 2;
+
+    /**
+     * Skips unless benchmarks are enabled.
+     */
+    @Before
+    public void enabled() {
+        Benchmark.assumeEnabled();
+    }
+
+    private static void run(String name, java.util.concurrent.Executor executor) throws InterruptedException {
+        // warmup
+        execute(executor, CALLS / 10);
+        final long start = System.nanoTime();
+        execute(executor, CALLS);
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Benchmark.report(name, CALLS * 1000L / Math.max(millis, 1), "calls/s");
+    }
+
+    private static void execute(java.util.concurrent.Executor executor, int calls) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(calls);
+        for (int i = 0; i < calls; i++) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(BLOCKING_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+
+            });
+        }
+        latch.await();
+    }
+
+    /**
+     * Runs blocking calls in every mode.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void blockingCalls() throws InterruptedException {
+        final ExecutorService io = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+        try {
+            run("IO", io);
+        } finally {
+            io.shutdown();
+        }
+
+        final ExecutorService pooled = new MemoryAwareThreadPoolExecutor(16, 0, 0, 60, TimeUnit.SECONDS);
+        try {
+            run("POOLED", pooled);
+        } finally {
+            pooled.shutdown();
+        }
+
+        final ThreadFactory factory = ThreadPerCallExecutor.newVirtualThreadFactory();
+        if (factory == null) {
+            Benchmark.report("VIRTUAL", "skipped, no virtual threads in this JVM", "");
+        } else {
+            run("VIRTUAL", new ThreadPerCallExecutor(factory, false));
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Tests {@link JsonIndex}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class JsonIndexTest {
+
+    private JsonIndex index(String json) {
+        return JsonIndex.of(ChannelBuffers.copiedBuffer(json, Charsets.UTF_8));
+    }
+
+    /**
+     * Tests an empty object.
+     */
+    @Test
+    public void empty() {
+        Assert.assertTrue(index("{}").keySet().isEmpty());
+        Assert.assertTrue(index(" \n{ \t}\r\n").keySet().isEmpty());
+    }
+
+    /**
+     * Tests that keys are kept in document order.
+     */
+    @Test
+    public void keySet() {
+        final JsonIndex index = index("{\"b\": 1, \"a\": 2, \"c\": 3}");
+        Assert.assertEquals(Arrays.asList("b", "a", "c"), Arrays.asList(index.keySet().toArray()));
+        Assert.assertTrue(index.containsKey("a"));
+        Assert.assertFalse(index.containsKey("d"));
+        Assert.assertNull(index.get("d"));
+    }
+
+    /**
+     * Tests the values {@link JSONObject#get(String)} would return.
+     */
+    @Test
+    public void values() throws Exception {
+        final String json = "{\"string\":\"value\",\"t\":true,\"f\":false,\"n\":null,\"int\":-42," +
+            "\"double\":1.5e3,\"object\":{\"key\":[1,2]},\"array\":[\"]\",{}]}";
+        final JsonIndex index = index(json);
+        final JSONObject expected = new JSONObject(json);
+        Assert.assertEquals(expected.get("string"), index.get("string"));
+        Assert.assertEquals(Boolean.TRUE, index.get("t"));
+        Assert.assertEquals(Boolean.FALSE, index.get("f"));
+        Assert.assertSame(JSONObject.NULL, index.get("n"));
+        Assert.assertEquals(expected.get("int"), index.get("int"));
+        Assert.assertEquals(expected.get("double"), index.get("double"));
+        Assert.assertEquals(expected.get("object").toString(), index.get("object").toString());
+        Assert.assertTrue(index.get("array") instanceof JSONArray);
+        Assert.assertEquals(2, JSONArray.class.cast(index.get("array")).length());
+    }
+
+    /**
+     * Tests that values are materialized only once.
+     */
+    @Test
+    public void materializedOnce() {
+        final JsonIndex index = index("{\"object\":{\"key\":\"value\"}}");
+        Assert.assertSame(index.get("object"), index.get("object"));
+    }
+
+    /**
+     * Tests escapes in keys and values.
+     */
+    @Test
+    public void escapes() {
+        final JsonIndex index = index("{\"k\\\"ey\":\"va\\\"l\\u00fce\",\"plain\":\"\\\\\"}");
+        Assert.assertEquals("va\"l\u00fce", index.get("k\"ey"));
+        Assert.assertEquals("\\", index.get("plain"));
+    }
+
+    /**
+     * Tests multi byte characters.
+     */
+    @Test
+    public void unicode() {
+        Assert.assertEquals("gr\u00fc\u00dfe", index("{\"\u00e4\":\"gr\u00fc\u00dfe\"}").get("\u00e4"));
+    }
+
+    /**
+     * Tests that only the readable bytes are indexed.
+     */
+    @Test
+    public void readableBytes() {
+        final ChannelBuffer buffer = ChannelBuffers.copiedBuffer("xx{\"a\":1}", Charsets.UTF_8);
+        buffer.skipBytes(2);
+        Assert.assertEquals(1, JsonIndex.of(buffer).get("a"));
+    }
+
+    /**
+     * Tests that only exact literals are accepted.
+     */
+    @Test
+    public void invalidLiterals() {
+        for (String literal : new String[] {"tru", "trueish", "fals", "falsey", "nul", "nil", "True", "NULL"}) {
+            assertInvalid("{\"a\":" + literal + "}");
+        }
+    }
+
+    /**
+     * Tests numbers.
+     */
+    @Test
+    public void numbers() {
+        for (String number : new String[] {"0", "-0", "12", "-3.25", "1e5", "1E+5", "2.5e-3"}) {
+            index("{\"a\":" + number + "}");
+        }
+        for (String number : new String[] {"01", "-", "1.", ".5", "1e", "1e+", "0x10", "+1", "1-2", "abc"}) {
+            assertInvalid("{\"a\":" + number + "}");
+        }
+    }
+
+    /**
+     * Tests that duplicate keys are rejected, just like {@link JSONObject} does.
+     */
+    @Test
+    public void duplicateKeys() {
+        assertInvalid("{\"a\":1,\"a\":2}");
+        assertInvalid("{\"a\":1,\"\\u0061\":2}");
+    }
+
+    /**
+     * Tests malformed content.
+     */
+    @Test
+    public void malformed() {
+        assertInvalid("");
+        assertInvalid("[]");
+        assertInvalid("{");
+        assertInvalid("{\"a\"}");
+        assertInvalid("{\"a\":}");
+        assertInvalid("{\"a\":1,}");
+        assertInvalid("{\"a\":1 \"b\":2}");
+        assertInvalid("{\"a\":\"unterminated}");
+        assertInvalid("{\"a\":{\"b\":[1,2}");
+        assertInvalid("{a:1}");
+    }
+
+    private void assertInvalid(String json) {
+        try {
+            index(json);
+            Assert.fail("Expected " + json + " to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import de.cosmocode.palava.bridge.call.CallType;
+import de.cosmocode.palava.bridge.content.ErrorContent;
+
+/**
+ * Tests {@link LegacyFrameDecoder}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+@SuppressWarnings("deprecation")
+public final class LegacyFrameDecoderTest {
+
+    private static final String CONTENT = "{\"key\":\"v\u00e4lue\"}";
+
+    private LegacyStatistics statistics;
+
+    private LegacyFrameDecoder decoder;
+
+    private DecoderEmbedder<Object> embedder;
+
+    /**
+     * Creates a new decoder for every test.
+     */
+    @Before
+    public void setUp() {
+        statistics = new LegacyStatistics();
+        decoder = new LegacyFrameDecoder(new NameTable(), statistics, new BackpressureHandler());
+        embedder = new DecoderEmbedder<Object>(decoder);
+    }
+
+    private static String frame(String type, String name, String sessionId, String content) {
+        return type + "://" + name + "/" + sessionId + "/(" + bytes(content).length + ")?" + content;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(Charsets.UTF_8);
+    }
+
+    private void offer(byte[] bytes, int from, int to) {
+        if (to > from) {
+            embedder.offer(ChannelBuffers.wrappedBuffer(bytes, from, to - from));
+        }
+    }
+
+    private LegacyHeader poll() {
+        final Object product = embedder.poll();
+        Assert.assertTrue("Expected a header but was " + product, product instanceof LegacyHeader);
+        return LegacyHeader.class.cast(product);
+    }
+
+    private static String contentOf(LegacyHeader header) {
+        final ChannelBuffer content = header.getContentBuffer();
+        return content.toString(content.readerIndex(), content.readableBytes(), Charsets.UTF_8);
+    }
+
+    private static void assertHeader(LegacyHeader header, CallType type, String name, String sessionId) {
+        Assert.assertSame(type, header.getCallType());
+        Assert.assertEquals(name, header.getAliasedName());
+        Assert.assertEquals(sessionId, header.getSessionId());
+        Assert.assertEquals(CONTENT, contentOf(header));
+        Assert.assertEquals(bytes(CONTENT).length, header.getContentLength());
+    }
+
+    /**
+     * Tests a frame received at once.
+     */
+    @Test
+    public void complete() {
+        final byte[] bytes = bytes(frame("json", "com.example.Command", "session", CONTENT));
+        offer(bytes, 0, bytes.length);
+        final LegacyHeader header = poll();
+        assertHeader(header, CallType.JSON, "com.example.Command", "session");
+        Assert.assertFalse(header.isBatch());
+        Assert.assertEquals(-1, header.getRequestId());
+        Assert.assertEquals(0, header.getSequence());
+        Assert.assertNull(embedder.poll());
+    }
+
+    /**
+     * Tests a frame split at every possible position.
+     */
+    @Test
+    public void splitAnywhere() {
+        final byte[] bytes = bytes(frame("json", "com.example.Command", "session", CONTENT));
+        for (int split = 1; split < bytes.length; split++) {
+            setUp();
+            offer(bytes, 0, split);
+            offer(bytes, split, bytes.length);
+            assertHeader(poll(), CallType.JSON, "com.example.Command", "session");
+            Assert.assertNull("Split at " + split, embedder.poll());
+        }
+    }
+
+    /**
+     * Tests a frame received byte by byte, which resumes every token in the middle.
+     */
+    @Test
+    public void byteByByte() {
+        final byte[] bytes = bytes(frame("binary", "com.example.Upload", "session", CONTENT));
+        for (int i = 0; i < bytes.length; i++) {
+            Assert.assertNull(embedder.peek());
+            offer(bytes, i, i + 1);
+        }
+        assertHeader(poll(), CallType.BINARY, "com.example.Upload", "session");
+    }
+
+    /**
+     * Tests checkpoints which resume in the middle of the name and the session id.
+     */
+    @Test
+    public void resumeMidToken() {
+        final byte[] bytes = bytes(frame("text", "com.example.Command", "session", CONTENT));
+        final int name = "text://com.exa".length();
+        final int session = "text://com.example.Command/ses".length();
+        final int length = "text://com.example.Command/session/(1".length();
+        offer(bytes, 0, name);
+        offer(bytes, name, session);
+        offer(bytes, session, length);
+        Assert.assertNull(embedder.peek());
+        offer(bytes, length, bytes.length);
+        assertHeader(poll(), CallType.TEXT, "com.example.Command", "session");
+    }
+
+    /**
+     * Tests multiple frames within one buffer and frames spanning two buffers.
+     */
+    @Test
+    public void pipelined() {
+        final String first = frame("json", "first", "session", CONTENT);
+        final String second = frame("data", "second", "session", CONTENT);
+        final String third = frame("close", "", "session", "");
+        final byte[] bytes = bytes(first + second + third);
+        final int split = bytes(first).length + 10;
+        offer(bytes, 0, split);
+        offer(bytes, split, bytes.length);
+
+        final LegacyHeader one = poll();
+        assertHeader(one, CallType.JSON, "first", "session");
+        Assert.assertEquals(0, one.getSequence());
+        final LegacyHeader two = poll();
+        assertHeader(two, CallType.DATA, "second", "session");
+        Assert.assertEquals(1, two.getSequence());
+        final LegacyHeader three = poll();
+        Assert.assertSame(CallType.CLOSE, three.getCallType());
+        Assert.assertEquals(0, three.getContentLength());
+        Assert.assertEquals(2, three.getSequence());
+    }
+
+    /**
+     * Tests that types are matched case insensitive and batches are json calls.
+     */
+    @Test
+    public void types() {
+        final byte[] bytes = bytes(
+            frame("JSON", "a", "s", CONTENT) + frame("Open", "", "s", CONTENT) + frame("batch", "b", "s", CONTENT)
+        );
+        offer(bytes, 0, bytes.length);
+        Assert.assertSame(CallType.JSON, poll().getCallType());
+        Assert.assertSame(CallType.OPEN, poll().getCallType());
+        final LegacyHeader batch = poll();
+        Assert.assertSame(CallType.JSON, batch.getCallType());
+        Assert.assertTrue(batch.isBatch());
+    }
+
+    /**
+     * Tests request ids of multiplexed frames.
+     */
+    @Test
+    public void multiplexed() {
+        decoder.setMultiplexed(true);
+        final byte[] bytes = bytes("json://name/session/42/(" + bytes(CONTENT).length + ")?" + CONTENT);
+        for (int i = 0; i < bytes.length; i++) {
+            offer(bytes, i, i + 1);
+        }
+        final LegacyHeader header = poll();
+        assertHeader(header, CallType.JSON, "name", "session");
+        Assert.assertEquals(42, header.getRequestId());
+    }
+
+    /**
+     * Tests that a frame larger than the channel high watermark, received in chunks,
+     * is read completely and suspends the channel only until its call has been answered.
+     */
+    @Test
+    public void largerThanWatermark() {
+        final BackpressureHandler backpressure = new BackpressureHandler();
+        final Readability readability = new Readability();
+        decoder = new LegacyFrameDecoder(new NameTable(), statistics, backpressure);
+        embedder = new DecoderEmbedder<Object>(readability, decoder, backpressure);
+
+        final String content = "{\"key\":\"" + Strings.repeat("v", 2 * 1024 * 1024) + "\"}";
+        final byte[] bytes = bytes(frame("json", "name", "session", content));
+        final int chunk = 8192;
+        for (int i = 0; i < bytes.length; i += chunk) {
+            Assert.assertNull(embedder.peek());
+            Assert.assertTrue("Suspended after " + i + " bytes", readability.readable);
+            offer(bytes, i, Math.min(i + chunk, bytes.length));
+        }
+
+        final LegacyHeader header = poll();
+        Assert.assertSame(CallType.JSON, header.getCallType());
+        Assert.assertEquals(bytes(content).length, header.getContentLength());
+        Assert.assertFalse(readability.readable);
+        backpressure.release(readability.channel, header.getHeapSize());
+        Assert.assertTrue(readability.readable);
+    }
+
+    /**
+     * Tests a token exceeding the limit before its delimiter has been received.
+     */
+    @Test
+    public void tokenTooLongMidToken() {
+        decoder.setMaxTokenLength(8);
+        final byte[] bytes = bytes(frame("json", "com.example.Command", "session", CONTENT));
+        final int first = "json://com.ex".length();
+        final int second = "json://com.example.Co".length();
+        offer(bytes, 0, first);
+        Assert.assertNull(embedder.peek());
+        offer(bytes, first, second);
+        assertRejected();
+        offer(bytes, second, bytes.length);
+        Assert.assertNull(embedder.poll());
+    }
+
+    /**
+     * Tests a content length exceeding the limit.
+     */
+    @Test
+    public void contentTooLong() {
+        decoder.setMaxContentLength(4);
+        final byte[] bytes = bytes(frame("json", "name", "session", CONTENT));
+        final int split = "json://name/session/(".length() + 1;
+        offer(bytes, 0, split);
+        offer(bytes, split, bytes.length);
+        assertRejected();
+    }
+
+    private void assertRejected() {
+        Assert.assertTrue(embedder.poll() instanceof ErrorContent);
+        Assert.assertNull(embedder.poll());
+        Assert.assertEquals(1, statistics.getRejectedFrames());
+
+        // everything following a rejected frame is discarded
+        final byte[] next = bytes(frame("json", "name", "session", CONTENT));
+        offer(next, 0, next.length);
+        Assert.assertNull(embedder.poll());
+    }
+
+    /**
+     * Tests a malformed frame.
+     */
+    @Test(expected = CodecEmbedderException.class)
+    public void malformed() {
+        final byte[] bytes = bytes("json:/name/session/(2)?{}");
+        offer(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Tests an illegal content length.
+     */
+    @Test(expected = CodecEmbedderException.class)
+    public void illegalContentLength() {
+        final byte[] bytes = bytes("json://name/session/(1x)?{}");
+        offer(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Records the readability requested for the embedded channel.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class Readability extends SimpleChannelHandler {
+
+        private Channel channel;
+
+        private boolean readable = true;
+
+        @Override
+        public void setInterestOpsRequested(ChannelHandlerContext context, ChannelStateEvent event)
+            throws Exception {
+            channel = event.getChannel();
+            readable = (Integer.class.cast(event.getValue()) & Channel.OP_READ) != 0;
+            super.setInterestOpsRequested(context, event);
+        }
+
+    }
+
+}
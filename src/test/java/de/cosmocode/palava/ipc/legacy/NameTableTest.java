@@ -0,0 +1,76 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+/**
+ * Tests {@link NameTable}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class NameTableTest {
+
+    private final NameTable table = new NameTable();
+
+    private String get(String name) {
+        // surrounding bytes make sure only the given region is used
+        final ChannelBuffer buffer = ChannelBuffers.copiedBuffer("json://" + name + "/", Charsets.UTF_8);
+        return table.get(buffer, "json://".length(), buffer.readableBytes() - "json://".length() - 1);
+    }
+
+    /**
+     * Tests that a name resolves to the same instance once it has been seen.
+     */
+    @Test
+    public void interned() {
+        final String first = get("com.example.Command");
+        Assert.assertEquals("com.example.Command", first);
+        Assert.assertSame(first, get("com.example.Command"));
+        Assert.assertEquals("com.example.Other", get("com.example.Other"));
+    }
+
+    /**
+     * Tests that names seen once do not keep new names from being interned.
+     */
+    @Test
+    public void oneOffNames() {
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertEquals("garbage" + i, get("garbage" + i));
+        }
+        final String first = get("com.example.Command");
+        Assert.assertSame(first, get("com.example.Command"));
+    }
+
+    /**
+     * Tests that names above the maximum length are decoded but not interned.
+     */
+    @Test
+    public void tooLong() {
+        final String name = Strings.repeat("a", 257);
+        Assert.assertEquals(name, get(name));
+        Assert.assertNotSame(get(name), get(name));
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.List;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link ResponseSequencer}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class ResponseSequencerTest {
+
+    private final ResponseSequencer sequencer = new ResponseSequencer();
+
+    private final ChannelCapture capture = new ChannelCapture();
+
+    private DecoderEmbedder<Object> embedder;
+
+    private Channel channel;
+
+    /**
+     * Sets up an embedded channel which collects everything written to it.
+     */
+    @Before
+    public void setUp() {
+        embedder = new DecoderEmbedder<Object>(capture);
+        channel = capture.getChannel();
+        Assert.assertNotNull(channel);
+    }
+
+    private List<Object> written() {
+        final List<Object> written = Lists.newArrayList();
+        while (true) {
+            final Object message = embedder.poll();
+            if (message == null) {
+                return written;
+            }
+            written.add(message);
+        }
+    }
+
+    /**
+     * Tests responses completing in order.
+     */
+    @Test
+    public void inOrder() {
+        sequencer.write(channel, 0, "0");
+        sequencer.write(channel, 1, "1");
+        Assert.assertEquals(Lists.newArrayList("0", "1"), written());
+    }
+
+    /**
+     * Tests that responses completing out of order wait for their predecessors.
+     */
+    @Test
+    public void outOfOrder() {
+        sequencer.write(channel, 2, "2");
+        sequencer.write(channel, 1, "1");
+        Assert.assertTrue(written().isEmpty());
+        sequencer.write(channel, 0, "0");
+        Assert.assertEquals(Lists.newArrayList("0", "1", "2"), written());
+        sequencer.write(channel, 4, "4");
+        Assert.assertTrue(written().isEmpty());
+        sequencer.write(channel, 3, "3");
+        Assert.assertEquals(Lists.newArrayList("3", "4"), written());
+    }
+
+    /**
+     * Tests that multiplexed responses skip the queue but still complete their slot.
+     */
+    @Test
+    public void writeNow() {
+        sequencer.writeNow(channel, 1, "1");
+        Assert.assertEquals(Lists.newArrayList("1"), written());
+        sequencer.write(channel, 2, "close");
+        Assert.assertTrue(written().isEmpty());
+        sequencer.write(channel, 0, "0");
+        Assert.assertEquals(Lists.newArrayList("0", "close"), written());
+    }
+
+    /**
+     * Tests that listeners are added to the write of their own response.
+     */
+    @Test
+    public void listeners() {
+        final List<Object> completed = Lists.newArrayList();
+        sequencer.write(channel, 1, "1", new Recorder(completed, "1"));
+        Assert.assertTrue(completed.isEmpty());
+        sequencer.write(channel, 0, "0", new Recorder(completed, "0"));
+        Assert.assertEquals(Lists.newArrayList("0", "1"), completed);
+        Assert.assertEquals(Lists.newArrayList("0", "1"), written());
+    }
+
+    /**
+     * Records the completion of a write.
+     *
+     * @since 1.4
+     * @author Willi Schoenborn
+     */
+    private static final class Recorder implements ChannelFutureListener {
+
+        private final List<Object> completed;
+
+        private final Object message;
+
+        public Recorder(List<Object> completed, Object message) {
+            this.completed = completed;
+            this.message = message;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            Assert.assertTrue(future.isSuccess());
+            completed.add(message);
+        }
+
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.bridge.content.JsonContent;
+
+/**
+ * Measures the allocation of a large result encoded by the {@link LegacyContentEncoder},
+ * serialized by a {@link JsonContent} as before and streamed by a {@link StreamingJsonContent}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class StreamingJsonContentBenchmark {
+
+    private static final int ITERATIONS = 2000;
+
+    private final Map<String, Object> result = Maps.newLinkedHashMap();
+
+    /**
+     * Skips unless benchmarks are enabled and creates a result of roughly 300 kb.
+     */
+    @Before
+    public void setUp() {
+        Benchmark.assumeEnabled();
+        final List<Object> rows = Lists.newArrayList();
+        for (int i = 0; i < 3000; i++) {
+            final Map<String, Object> row = Maps.newLinkedHashMap();
+            row.put("id", i);
+            row.put("name", "Row number " + i);
+            row.put("active", i % 2 == 0);
+            row.put("score", i * 0.25);
+            rows.add(row);
+        }
+        result.put("rows", rows);
+    }
+
+    /**
+     * Compares the allocation of both json contents when being encoded.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void encode() throws Exception {
+        final LegacyContentEncoder encoder = new LegacyContentEncoder();
+        final ChannelCapture capture = new ChannelCapture();
+        new EncoderEmbedder<ChannelBuffer>(encoder, capture);
+        final Channel channel = capture.getChannel();
+
+        Benchmark.measure("JsonContent", ITERATIONS, new Benchmark.Operation() {
+
+            @Override
+            public void run() throws Exception {
+                encoder.encode(channel, new JsonContent(result), -1);
+            }
+
+        });
+        Benchmark.measure("StreamingJsonContent", ITERATIONS, new Benchmark.Operation() {
+
+            @Override
+            public void run() throws Exception {
+                encoder.encode(channel, StreamingJsonContent.of(result), -1);
+            }
+
+        });
+    }
+
+}
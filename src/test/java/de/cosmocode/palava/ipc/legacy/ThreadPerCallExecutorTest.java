@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.ipc.legacy;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link ThreadPerCallExecutor}.
+ *
+ * @since 1.4
+ * @author Willi Schoenborn
+ */
+public final class ThreadPerCallExecutorTest {
+
+    private static final int CHANNELS = 100;
+
+    private final ChannelFactory factory = new DefaultLocalClientChannelFactory();
+
+    private final ThreadPerCallExecutor executor = new ThreadPerCallExecutor(Executors.defaultThreadFactory(), true);
+
+    /**
+     * Releases the channel factory.
+     */
+    @After
+    public void tearDown() {
+        factory.releaseExternalResources();
+    }
+
+    private Channel newChannel() {
+        final ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("handler", new SimpleChannelUpstreamHandler());
+        return factory.newChannel(pipeline);
+    }
+
+    private void submit(Channel channel, final CountDownLatch latch) {
+        final UpstreamMessageEvent event = new UpstreamMessageEvent(channel, "message", null);
+        executor.execute(new ChannelEventRunnable(channel.getPipeline().getContext("handler"), event) {
+
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+
+        });
+    }
+
+    /**
+     * Tests that the queues of closed channels are removed, even though their
+     * closed events never pass through the executor.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void closedChannelsAreRemoved() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(CHANNELS * 2);
+        final List<Channel> channels = Lists.newArrayList();
+        for (int i = 0; i < CHANNELS; i++) {
+            final Channel channel = newChannel();
+            channels.add(channel);
+            submit(channel, latch);
+            submit(channel, latch);
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(CHANNELS, executor.getChildCount());
+
+        for (Channel channel : channels) {
+            channel.close().awaitUninterruptibly();
+        }
+        Assert.assertEquals(0, executor.getChildCount());
+    }
+
+    /**
+     * Tests that events of an already closed channel do not leave a queue behind.
+     *
+     * @throws InterruptedException should not happen
+     */
+    @Test
+    public void alreadyClosed() throws InterruptedException {
+        final Channel channel = newChannel();
+        channel.close().awaitUninterruptibly();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        submit(channel, latch);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, executor.getChildCount());
+    }
+
+}